@@ -2,15 +2,18 @@ import models.Media;
 import models.Playlist;
 
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.util.List;
 
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.JList;
 // import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 
@@ -26,17 +29,22 @@ public class AddMediaToPlaylistMenu {
 
         dropDown.removeAllItems();
         dropDown.addItem(null);
+        dropDown.setRenderer(new MembershipRenderer(media));
 
-        try {
-            allPlaylists = Database.getAllPlaylists();
+        // Membership gets loaded alongside the playlists, so the renderer can mark which ones already have it without any more queries
+        AsyncDatabase.onEdt(AsyncDatabase.submit(() -> {
+            List<Playlist> playlists = Database.getAllPlaylists();
+            for(Playlist listing : playlists)
+                PlaylistMembership.load(listing.id);
+            return playlists;
+        }), playlists -> {
+            allPlaylists = playlists;
 
             for(Playlist listing : allPlaylists)
             {
                 dropDown.addItem(listing);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        });
 
         JPanel formPanel = new JPanel(new GridBagLayout());
 
@@ -77,20 +85,42 @@ public class AddMediaToPlaylistMenu {
 
 
         // // result = info;
-        if(selected != null)
+        if(selected != null && !PlaylistMembership.containsLoaded(selected.id, media.id))
         {
-            try {
-                if(!Database.getMediaInPlaylist(selected.id).contains(media)) //Safeguard to prevent duplicate entries (causes errors)
-                    Database.insertToPlaylist(selected.id, media.id);
-            } catch (Exception e) {
+            // Duplicates get ignored by the db itself, so there's nothing to check first
+            AsyncDatabase.insertToPlaylist(selected.id, media.id).exceptionally(e -> {
                 e.printStackTrace();
-            }
+                return null;
+            });
         }
         
 
         AddToPlaylistDialog.dispose();
     }
     
+    // Greys out the playlists the media is already in
+    private static class MembershipRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
+        private final Media media;
+
+        MembershipRenderer(Media media) {
+            this.media = media;
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+
+            if(value instanceof Playlist playlist && PlaylistMembership.containsLoaded(playlist.id, media.id))
+            {
+                setText(playlist.name + " (already added)");
+                setEnabled(false);
+            }
+
+            return this;
+        }
+    }
+
     // Utility for GridBagConstraints
     private static GridBagConstraints gbc(GridBagConstraints c, int x, int y) {
         return gbc(c, x, y, 1);
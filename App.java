@@ -41,6 +41,17 @@ public class App extends JFrame {
 
         try {
             Database.initialize();
+            AsyncDatabase.onEdt(AsyncDatabase.run(LibraryRepository::load), done -> {}); // Views fall back to the db until this is done
+            AsyncDatabase.onEdt(AsyncDatabase.run(CoverArtCache::removeUnused), done -> {});
+            AsyncDatabase.onEdt(AsyncDatabase.submit(() -> {
+                LibraryWatcher.start(); // Before the scan, so nothing that changes during it gets missed
+                return LibraryScanner.scanAll(); // Picks up whatever changed in the library folders while we were closed
+            }), result -> {});
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        try {
             MusicPlayer.initialize();
         } catch (Exception e) {
             e.printStackTrace();
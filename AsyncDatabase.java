@@ -0,0 +1,154 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import models.Media;
+import models.Playlist;
+
+// Non-blocking versions of the Database calls the UI makes. Anything running on the EDT should come through here,
+// then use onEdt to get the result back onto the EDT once it's ready.
+public class AsyncDatabase {
+    public interface Query<T> {
+        T run() throws Exception;
+    }
+
+    public interface Update {
+        void run() throws Exception;
+    }
+
+    private static final ExecutorService executor = createExecutor();
+
+    // Virtual threads when the runtime has them (Java 21+), otherwise a plain pool of daemon threads that grows as needed
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(Exception e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "db-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public static <T> CompletableFuture<T> submit(Query<T> query) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        executor.execute(() -> {
+            try {
+                future.complete(query.run());
+            } catch(Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    public static CompletableFuture<Void> run(Update update) {
+        return submit(() -> {
+            update.run();
+            return null;
+        });
+    }
+
+    // Hands the result to onSuccess on the EDT, errors just get printed like everywhere else in the UI
+    public static <T> void onEdt(CompletableFuture<T> future, Consumer<T> onSuccess) {
+        onEdt(future, onSuccess, Throwable::printStackTrace);
+    }
+
+    public static <T> void onEdt(CompletableFuture<T> future, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        future.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            if(error != null)
+                onError.accept(error);
+            else
+                onSuccess.accept(result);
+        }));
+    }
+
+//#region MediaFiles
+    public static CompletableFuture<Integer> insertMedia(Media data) {
+        return submit(() -> Database.insertMedia(data));
+    }
+
+    public static CompletableFuture<Void> updateMedia(Media data, int index) {
+        return run(() -> Database.updateMedia(data, index));
+    }
+
+    public static CompletableFuture<Void> deleteMedia(int id) {
+        return run(() -> Database.deleteMedia(id));
+    }
+
+    public static CompletableFuture<Media> findMediaById(int id) {
+        return submit(() -> Database.findMediaById(id));
+    }
+
+    public static CompletableFuture<List<Media>> getMediaPage(Database.MediaSort sortKey, Media after, int limit) {
+        return submit(() -> Database.getMediaPage(sortKey, after, limit));
+    }
+
+    public static CompletableFuture<List<Media>> searchMedia(String query, int limit) {
+        return submit(() -> Database.searchMedia(query, limit));
+    }
+
+    public static CompletableFuture<List<Media>> getMediaInPlaylist(int playlist) {
+        return submit(() -> Database.getMediaInPlaylist(playlist));
+    }
+//#endregion MediaFiles
+
+//#region Playlists
+    public static CompletableFuture<Integer> createPlaylist(Playlist data) {
+        return submit(() -> Database.createPlaylist(data));
+    }
+
+    public static CompletableFuture<Void> updatePlaylistDetails(Playlist data, int index) {
+        return run(() -> Database.updatePlaylistDetails(data, index));
+    }
+
+    public static CompletableFuture<Void> renamePlaylist(int id, String name) {
+        return run(() -> Database.renamePlaylist(id, name));
+    }
+
+    public static CompletableFuture<Void> deletePlaylist(int id) {
+        return run(() -> Database.deletePlaylist(id));
+    }
+
+    public static CompletableFuture<List<Playlist>> getAllPlaylists() {
+        return submit(Database::getAllPlaylists);
+    }
+
+    public static CompletableFuture<Playlist> findPlaylistById(int id) {
+        return submit(() -> Database.findPlaylistById(id));
+    }
+
+    public static CompletableFuture<Boolean> insertToPlaylist(int playlist, int media) {
+        return submit(() -> Database.insertToPlaylist(playlist, media));
+    }
+
+    public static CompletableFuture<Boolean> insertAt(int playlist, int media, int afterMedia) {
+        return submit(() -> Database.insertAt(playlist, media, afterMedia));
+    }
+
+    public static CompletableFuture<Boolean> isInPlaylist(int playlist, int media) {
+        return submit(() -> Database.isInPlaylist(playlist, media));
+    }
+
+    public static CompletableFuture<Void> moveInPlaylist(int playlist, int media, int afterMedia) {
+        return run(() -> Database.moveInPlaylist(playlist, media, afterMedia));
+    }
+
+    public static CompletableFuture<Void> reorderPlaylist(int playlist, List<Integer> mediaIds) {
+        return run(() -> Database.reorderPlaylist(playlist, mediaIds));
+    }
+
+    public static CompletableFuture<Void> removeFromPlaylist(int media, int playlist) {
+        return run(() -> Database.removeFromPlaylist(media, playlist));
+    }
+//#endregion Playlists
+}
@@ -0,0 +1,241 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import models.Media;
+
+// Song covers, pre-scaled and saved as small PNGs in the data directory, named after the hash of the original cover bytes
+// (media.cover_hash). A whole album shares one set of files, and once a cover's been saved nothing ever decodes the
+// original again. The least recently used covers get deleted once the folder goes over its budget
+// (change it with -Dmidnight.coverCacheBytes). Decoded images also go through ThumbnailCache, so scrolling back doesn't even touch the disk
+public class CoverArtCache {
+    static final int[] SIZES = { 40, 100, 200 }; // Song rows, mid-sized views, the big playlist/editor image
+    private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    private static long budget = Long.getLong("midnight.coverCacheBytes", DEFAULT_BUDGET);
+
+    private static Path directory;
+    private static final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true); // hash -> bytes on disk, least recently used first
+    private static long usedBytes;
+    private static boolean indexed;
+    private static final Set<String> storedThisRun = new HashSet<>(); // Can be newer than what removeUnused read from the db
+
+    // Blocks on the disk (and the file, the first time a cover is seen), so call it off the EDT. Null if the song has no cover
+    public static BufferedImage getCover(Media media, int size) throws Exception {
+        if(media.coverHash == null)
+            return null;
+
+        String key = "cover:" + media.coverHash + ":" + size;
+        BufferedImage cached = ThumbnailCache.get(key);
+        if(cached != null)
+            return cached;
+
+        int rendition = renditionFor(size);
+        BufferedImage image = readRendition(media.coverHash, rendition);
+
+        if(image == null) {
+            // Not saved yet (or evicted). Pull it out of the file once and save every size while we have it decoded
+            byte[] cover = MediaFileHandler.readCoverArt(media.path);
+            if(cover == null)
+                return null;
+
+            String hash = MediaFileHandler.hash(cover); // Same as media.coverHash unless the file changed since it was read
+            Map<Integer, BufferedImage> saved = store(hash, cover);
+            if(saved == null)
+                return null;
+
+            image = saved.containsKey(rendition) ? saved.get(rendition) : readRendition(hash, rendition); // Saved by someone else in the meantime
+            if(image == null)
+                return null;
+        }
+
+        if(image.getWidth() != size)
+            image = ImageUtils.scaleImage(image, size, size);
+
+        ThumbnailCache.put(key, image);
+        return image;
+    }
+
+    // Saves every size of a cover unless they're already there. readTechnicalMetadata calls this when it hashes a new cover,
+    // so the bytes it already has don't have to be pulled out of the file again. Returns the sizes it saved, null if it couldn't decode it
+    public static Map<Integer, BufferedImage> store(String hash, byte[] cover) throws Exception {
+        synchronized(entries) {
+            index();
+            if(entries.containsKey(hash))
+                return new HashMap<>(); // Another song off the same album got here first
+        }
+
+        BufferedImage largest = ImageUtils.decodeScaled(new ByteArrayInputStream(cover), SIZES[SIZES.length - 1]);
+        if(largest == null)
+            return null;
+
+        Map<Integer, BufferedImage> renditions = new HashMap<>();
+        long bytes = 0;
+        BufferedImage previous = largest;
+        for(int i = SIZES.length - 1; i >= 0; i--) {
+            BufferedImage image = ImageUtils.scaleImage(previous, SIZES[i], SIZES[i]); // Each one from the next size up, so it scales down in steps
+            renditions.put(SIZES[i], image);
+            bytes += write(renditionPath(hash, SIZES[i]), image);
+            previous = image;
+        }
+
+        synchronized(entries) {
+            storedThisRun.add(hash);
+            Long old = entries.put(hash, bytes);
+            usedBytes += bytes - (old == null ? 0 : old);
+            trim();
+        }
+
+        return renditions;
+    }
+
+    // Deletes covers no song points at anymore (songs deleted, files retagged). Blocks on the db, so run it in the background
+    public static void removeUnused() throws Exception {
+        Set<String> inUse = Database.getCoverHashes();
+
+        synchronized(entries) {
+            index();
+            Iterator<Map.Entry<String, Long>> entry = entries.entrySet().iterator();
+            while(entry.hasNext()) {
+                Map.Entry<String, Long> next = entry.next();
+                if(!inUse.contains(next.getKey()) && !storedThisRun.contains(next.getKey())) {
+                    delete(next.getKey());
+                    usedBytes -= next.getValue();
+                    entry.remove();
+                }
+            }
+        }
+    }
+
+    public static void setBudget(long bytes) {
+        synchronized(entries) {
+            budget = bytes;
+            trim();
+        }
+    }
+
+    public static long getUsedBytes() {
+        synchronized(entries) {
+            return usedBytes;
+        }
+    }
+
+    // Smallest saved size that's at least as big as what's wanted, so scaling only ever goes down
+    private static int renditionFor(int size) {
+        for(int rendition : SIZES) {
+            if(rendition >= size)
+                return rendition;
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    private static BufferedImage readRendition(String hash, int size) throws Exception {
+        Path path = renditionPath(hash, size);
+        if(!Files.exists(path))
+            return null;
+
+        BufferedImage image = ImageIO.read(path.toFile());
+        if(image == null)
+            return null;
+
+        synchronized(entries) {
+            index();
+            if(entries.get(hash) != null) // Marks it as recently used
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis())); // So the order survives a restart
+        }
+        return image;
+    }
+
+    // Written to a temp file first, so a crash never leaves half a PNG behind under the real name
+    private static long write(Path path, BufferedImage image) throws Exception {
+        Path temp = Files.createTempFile(path.getParent(), "cover", ".tmp");
+        try {
+            ImageIO.write(image, "png", temp.toFile());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return Files.size(path);
+    }
+
+    private static Path renditionPath(String hash, int size) throws Exception {
+        return directory().resolve(hash + "-" + size + ".png");
+    }
+
+    private static Path directory() throws Exception {
+        synchronized(entries) {
+            if(directory == null) {
+                directory = Database.getDataDirectory().resolve("covers");
+                Files.createDirectories(directory);
+            }
+            return directory;
+        }
+    }
+
+    // Has to be called while holding the lock. Works out what's on disk the first time the cache is used, oldest first
+    private static void index() throws Exception {
+        if(indexed)
+            return;
+        indexed = true;
+
+        Map<String, Long> sizes = new HashMap<>();
+        Map<String, Long> lastUsed = new HashMap<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory(), "*.png")) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                int dash = name.lastIndexOf('-');
+                if(dash < 0)
+                    continue;
+
+                String hash = name.substring(0, dash);
+                sizes.merge(hash, Files.size(file), Long::sum);
+                lastUsed.merge(hash, Files.getLastModifiedTime(file).toMillis(), Math::max);
+            }
+        }
+
+        List<String> oldestFirst = new ArrayList<>(sizes.keySet());
+        oldestFirst.sort(Comparator.comparingLong(lastUsed::get));
+        for(String hash : oldestFirst) {
+            entries.put(hash, sizes.get(hash));
+            usedBytes += sizes.get(hash);
+        }
+
+        trim();
+    }
+
+    // Has to be called while holding the lock
+    private static void trim() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while(usedBytes > budget && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            delete(entry.getKey());
+            usedBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private static void delete(String hash) {
+        for(int size : SIZES) {
+            try {
+                Files.deleteIfExists(renditionPath(hash, size));
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+        ThumbnailCache.invalidate("cover:" + hash + ":");
+    }
+}
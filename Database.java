@@ -1,15 +1,26 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 // import javax.xml.crypto.Data;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.Statement;
+import java.sql.Types;
 import java.sql.ResultSet;
 // import java.sql.SQLException;
 
@@ -17,117 +28,175 @@ import models.Media;
 import models.Playlist;
 
 public class Database {
+    // Orders the library can be paged in. Each one has an index ending in id (see DatabaseMigrations.addSortIndexes),
+    // and the id on the end breaks ties so every row has exactly one spot in the order
+    public enum MediaSort {
+        NAME("name COLLATE NOCASE"),
+        AUTHOR("IFNULL(author, '') COLLATE NOCASE"),
+        ALBUM("IFNULL(album, '') COLLATE NOCASE"),
+        DATE_ADDED("added_at");
+
+        final String expression;
+
+        MediaSort(String expression) {
+            this.expression = expression;
+        }
+
+        Object keyOf(Media media) {
+            switch(this) {
+                case NAME: return media.name;
+                case AUTHOR: return media.author == null ? "" : media.author;
+                case ALBUM: return media.album == null ? "" : media.album;
+                default: return media.addedAt;
+            }
+        }
+
+        // The same order in memory (for LibraryRepository). Java's case folding goes a bit further than NOCASE's ASCII only one,
+        // which is fine as long as a list is only ever paged with the comparator it was sorted by
+        Comparator<Media> comparator() {
+            Comparator<Media> byKey = this == DATE_ADDED
+                ? Comparator.comparingLong(media -> media.addedAt)
+                : Comparator.comparing(media -> (String) keyOf(media), String.CASE_INSENSITIVE_ORDER);
+            return byKey.thenComparingInt(media -> media.id);
+        }
+    }
+
+    public interface ImportProgress {
+        void update(int done, int total, double rowsPerSecond);
+    }
+
+    // playlist_media.position values are spaced this far apart, so a track can be moved/inserted between two others
+    // by giving it a position in the gap (one row update) instead of shifting everything below it
+    static final long POSITION_GAP = 1024;
+
+    private static final int IMPORT_CHUNK_SIZE = 500; // Rows per transaction
+    private static final int ROWS_PER_INSERT = 50; // Rows per multi-row INSERT (keeps us far below SQLite's variable limit)
 
-    private static Connection connection;
     public static void main(String[] args) throws Exception {
         Class.forName("org.sqlite.JDBC");
         initialize();
     }
 
+    // Where the db and everything else we save lives
+    static Path getDataDirectory() throws Exception {
+        Path directory = Paths.get(System.getenv("APPDATA"), "MidnightMedia");
+        Files.createDirectories(directory);
+        return directory;
+    }
+
     private static String getDatabaseUrl() throws Exception {
-        Path dbPath = Paths.get(
-            System.getenv("APPDATA"),
-            "MidnightMedia",
-            "midnightmedia.db"
-        );
+        return "jdbc:sqlite:" + getDataDirectory().resolve("midnightmedia.db").toString();
+    }
 
-        Files.createDirectories(dbPath.getParent());
-        return "jdbc:sqlite:" + dbPath.toString();
+    // Opens the db and brings the schema up to date, only needs to run once when the app starts
+    public static void initialize() throws Exception {
+        if(DatabaseConnections.isOpen())
+            return;
+
+        DatabaseConnections.open(getDatabaseUrl());
+
+        DatabaseConnections.write(connection -> {
+            DatabaseMigrations.migrate(connection);
+            DatabaseMigrations.verifyQueryPlans(connection);
+            return null;
+        });
     }
 
-    public static Connection getConnection() throws Exception {
-        if(connection == null || connection.isClosed()) {
-            connection = DriverManager.getConnection(getDatabaseUrl());
+    // What media.path_key holds, so the same file always maps to the same row no matter how its path got written
+    public static String normalizePath(String path) {
+        String normalized;
+        try {
+            normalized = Paths.get(path).toAbsolutePath().normalize().toString();
+        } catch(Exception e) {
+            normalized = path; // Not a valid path on this machine, just keep what we were given
         }
 
-        return connection;
+        normalized = normalized.replace('\\', '/');
+        if(System.getProperty("os.name").toLowerCase().startsWith("windows"))
+            normalized = normalized.toLowerCase(); // Windows paths aren't case sensitive
+
+        return normalized;
     }
 
-    public static void initialize() throws Exception {
-        try(Statement statement = getConnection().createStatement()) {
-            statement.execute("""
-                CREATE TABLE IF NOT EXISTS media (
-                id INTEGER PRIMARY KEY AUTOINCREMENT,
-                path TEXT NOT NULL,
-                name TEXT NOT NULL,
-                format TEXT NOT NULL,
-                author TEXT,
-                album TEXT
-                )"""
-            );
-
-            statement.execute("""
-                CREATE TABLE IF NOT EXISTS playlist (
-                id INTEGER PRIMARY KEY AUTOINCREMENT,
-                name TEXT NOT NULL,
-                thumbnail BLOB
-                )"""
-            );
-
-            statement.execute("""
-                CREATE TABLE IF NOT EXISTS playlist_media (
-                playlist_id INTEGER NOT NULL,
-                media_id INTEGER NOT NULL,
-                position INTEGER NOT NULL,
-                probability REAL DEFAULT 1,
-                repeatability INTEGER DEFAULT 0,
-
-                PRIMARY KEY (playlist_id, media_id),
-
-                FOREIGN KEY (playlist_id)
-                    REFERENCES playlist(id)
-                    ON DELETE CASCADE,
-
-                FOREIGN KEY (media_id)
-                    REFERENCES media(id)
-                    ON DELETE CASCADE
-                )"""
-            );
-        }
+//#region Mappers
+    // Column order here has to line up with the read* functions below, they go by index instead of by name
+    private static final String MEDIA_COLUMNS = "id, path, name, format, author, album, added_at, "
+        + "duration_ms, bitrate, codec, file_size, file_mtime, cover_hash, read_pending";
+
+    // Same deal for inserts, bindMediaInsert fills these in order
+    private static final String MEDIA_INSERT_COLUMNS = "path, name, format, author, album, path_key, added_at, "
+        + "duration_ms, bitrate, codec, file_size, file_mtime, cover_hash, read_pending";
+    private static final String MEDIA_INSERT_ROW = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final int MEDIA_INSERT_PARAMS = 14;
+    private static final String PLAYLIST_SUMMARY_COLUMNS = "id, name, thumbnail IS NOT NULL"; // Everything but the image itself
+
+    private static String prefixed(String alias, String columns) {
+        return alias + "." + columns.replace(", ", ", " + alias + ".");
     }
 
-//#region Integration
-    public static void addToPlaylist(int playlistId, int mediaId, int position) throws Exception {
-        String sql = """
-            INSERT INTO playlist_media (playlist_id, media_id, position)
-        """;
-        
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql)) {
-            ps.setInt(1, playlistId);
-            ps.setInt(2, mediaId);
-            ps.setInt(3, position);
+    // first is the index of the id column, so joined queries can put the media columns anywhere in the select
+    private static Media readMedia(ResultSet rs, int first) throws Exception {
+        Media media = new Media(
+            rs.getInt(first),
+            rs.getString(first + 1),
+            rs.getString(first + 2),
+            rs.getString(first + 3),
+            rs.getString(first + 4),
+            rs.getString(first + 5),
+            rs.getLong(first + 6)
+        );
 
-            ps.executeUpdate();
-        }
+        // NULLs (never probed) come back as 0/null, which is what Media uses for unknown anyway
+        media.durationMs = rs.getLong(first + 7);
+        media.bitrate = rs.getInt(first + 8);
+        media.codec = rs.getString(first + 9);
+        media.fileSize = rs.getLong(first + 10);
+        media.fileModified = rs.getLong(first + 11);
+        media.coverHash = rs.getString(first + 12);
+        media.readPending = rs.getInt(first + 13) != 0;
+        return media;
+    }
+
+    private static Playlist readPlaylistSummary(ResultSet rs, int first) throws Exception {
+        Playlist playlist = new Playlist(
+            rs.getInt(first),
+            rs.getString(first + 1)
+        );
+        playlist.hasImage = rs.getBoolean(first + 2);
+
+        return playlist;
     }
+//#endregion Mappers
 
+//#region Integration
     public static void removeFromPlaylist(int media, int playlist) throws Exception {
         String sql = """
                 DELETE FROM playlist_media
                 WHERE media_id = ? AND playlist_id = ?
             """;
 
-        try(PreparedStatement ps = getConnection().prepareStatement(sql)) {
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, media);
             ps.setInt(2, playlist);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+
+        PlaylistMembership.removed(playlist, media);
+        LibraryRepository.playlistContentsChanged(playlist, new int[0], new int[0], new int[] { media });
     }
 //#endregion Integration
 
 //#region MediaFiles
     public static int insertMedia(Media data) throws Exception {
         String sql = """
-            INSERT INTO media (path, name, format, author, album)
-            VALUES (?, ?, ?, ?, ?)
-        """;
+            INSERT INTO media (%s)
+            VALUES %s
+        """.formatted(MEDIA_INSERT_COLUMNS, MEDIA_INSERT_ROW);
 
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, data.path);
-            ps.setString(2, data.name);
-            ps.setString(3, data.format);
-            ps.setString(4, data.author);
-            ps.setString(5, data.album);
+        int id = DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql, Statement.RETURN_GENERATED_KEYS);
+            bindMediaInsert(ps, 0, data);
 
             ps.executeUpdate();
 
@@ -140,7 +209,219 @@ public class Database {
             }
 
             throw new RuntimeException("Failed to insert media");
+        });
+
+        data.id = id;
+        LibraryRepository.mediaAdded(List.of(data));
+        return id;
+    }
+
+    public static List<Integer> insertMediaBatch(Collection<Media> data) throws Exception {
+        return insertMediaBatch(data, null);
+    }
+
+    // Bulk version of insertMedia for importing whole libraries.
+    // Rows get written in chunks of IMPORT_CHUNK_SIZE, each chunk being one transaction (one fsync instead of one per file),
+    // and the ids come back in the same order as the collection. Every Media also gets its id filled in.
+    public static List<Integer> insertMediaBatch(Collection<Media> data, ImportProgress progress) throws Exception {
+        List<Integer> ids = new ArrayList<>(data.size());
+        long start = System.nanoTime();
+
+        Iterator<Media> iterator = data.iterator();
+        List<Media> chunk = new ArrayList<>(IMPORT_CHUNK_SIZE);
+
+        while(iterator.hasNext()) {
+            chunk.clear();
+            while(iterator.hasNext() && chunk.size() < IMPORT_CHUNK_SIZE)
+                chunk.add(iterator.next());
+
+            ids.addAll(DatabaseConnections.transaction(connection -> insertMediaChunk(connection, chunk)));
+            LibraryRepository.mediaAdded(new ArrayList<>(chunk));
+
+            if(progress != null) {
+                double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+                progress.update(ids.size(), data.size(), seconds > 0 ? ids.size() / seconds : 0);
+            }
+        }
+
+        return ids;
+    }
+
+    private static List<Integer> insertMediaChunk(Connection connection, List<Media> chunk) throws Exception {
+        int fullInserts = chunk.size() / ROWS_PER_INSERT;
+        int row = 0;
+
+        if(fullInserts > 0) {
+            StringBuilder sql = new StringBuilder("INSERT INTO media (" + MEDIA_INSERT_COLUMNS + ") VALUES ");
+            for(int i = 0; i < ROWS_PER_INSERT; i++)
+                sql.append(i == 0 ? "" : ", ").append(MEDIA_INSERT_ROW);
+
+            PreparedStatement multi = DatabaseConnections.prepare(connection, sql.toString());
+            for(int i = 0; i < fullInserts; i++) {
+                for(int j = 0; j < ROWS_PER_INSERT; j++)
+                    bindMediaInsert(multi, j * MEDIA_INSERT_PARAMS, chunk.get(row++));
+                multi.addBatch();
+            }
+            multi.executeBatch();
+        }
+
+        if(row < chunk.size()) {
+            PreparedStatement single = DatabaseConnections.prepare(connection, "INSERT INTO media (" + MEDIA_INSERT_COLUMNS + ") VALUES " + MEDIA_INSERT_ROW);
+            while(row < chunk.size()) {
+                bindMediaInsert(single, 0, chunk.get(row++));
+                single.addBatch();
+            }
+            single.executeBatch();
+        }
+
+        // AUTOINCREMENT hands out ids in order and we're the only writer inside this transaction,
+        // so the chunk got the ids ending at last_insert_rowid()
+        int lastId;
+        try(ResultSet rs = DatabaseConnections.prepare(connection, "SELECT last_insert_rowid()").executeQuery()) {
+            rs.next();
+            lastId = rs.getInt(1);
+        }
+
+        List<Integer> ids = new ArrayList<>(chunk.size());
+        int firstId = lastId - chunk.size() + 1;
+        for(int i = 0; i < chunk.size(); i++) {
+            chunk.get(i).id = firstId + i;
+            ids.add(firstId + i);
         }
+
+        return ids;
+    }
+
+    private static void bindMediaInsert(PreparedStatement ps, int offset, Media data) throws Exception {
+        ps.setString(offset + 1, data.path);
+        ps.setString(offset + 2, data.name);
+        ps.setString(offset + 3, data.format);
+        ps.setString(offset + 4, data.author);
+        ps.setString(offset + 5, data.album);
+        ps.setString(offset + 6, normalizePath(data.path));
+
+        if(data.addedAt == 0)
+            data.addedAt = System.currentTimeMillis();
+        ps.setLong(offset + 7, data.addedAt);
+
+        bindTechnicalMetadata(ps, offset + 7, data);
+        ps.setInt(offset + 14, data.readPending ? 1 : 0);
+    }
+
+    // Fills the 6 technical metadata params starting after offset, NULLs for anything that was never probed
+    private static void bindTechnicalMetadata(PreparedStatement ps, int offset, Media data) throws Exception {
+        if(!data.hasTechnicalMetadata()) {
+            for(int i = 1; i <= 6; i++)
+                ps.setNull(offset + i, Types.NULL);
+            return;
+        }
+
+        ps.setLong(offset + 1, data.durationMs);
+        ps.setInt(offset + 2, data.bitrate);
+        ps.setString(offset + 3, data.codec);
+        ps.setLong(offset + 4, data.fileSize);
+        ps.setLong(offset + 5, data.fileModified);
+        ps.setString(offset + 6, data.coverHash);
+    }
+
+    // Saves what MediaFileHandler.readTechnicalMetadata found, along with the fingerprint it found it for
+    public static void updateTechnicalMetadata(Media data) throws Exception {
+        String sql = """
+            UPDATE media
+            SET duration_ms = ?, bitrate = ?, codec = ?, file_size = ?, file_mtime = ?, cover_hash = ?
+            WHERE id = ?
+        """;
+
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            bindTechnicalMetadata(ps, 0, data);
+            ps.setInt(7, data.id);
+
+            return ps.executeUpdate();
+        });
+
+        LibraryRepository.mediaProbed(data);
+    }
+
+    // Same thing for a whole batch in one transaction (LibraryWatcher)
+    public static void updateTechnicalMetadataBatch(Collection<Media> data) throws Exception {
+        if(data.isEmpty())
+            return;
+
+        String sql = """
+            UPDATE media
+            SET duration_ms = ?, bitrate = ?, codec = ?, file_size = ?, file_mtime = ?, cover_hash = ?
+            WHERE id = ?
+        """;
+
+        DatabaseConnections.transaction(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            for(Media media : data) {
+                bindTechnicalMetadata(ps, 0, media);
+                ps.setInt(7, media.id);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        });
+
+        LibraryRepository.mediaProbed(new ArrayList<>(data));
+    }
+
+    // What LibraryScanner read for a batch of files, in one transaction. tagged also gets its name/author/album saved
+    // (files read for the first time), probed only its technical metadata (files that changed, they might have been renamed by hand)
+    public static void updateReadMediaBatch(Collection<Media> tagged, Collection<Media> probed) throws Exception {
+        if(tagged.isEmpty() && probed.isEmpty())
+            return;
+
+        String technicalSql = """
+            UPDATE media
+            SET duration_ms = ?, bitrate = ?, codec = ?, file_size = ?, file_mtime = ?, cover_hash = ?, read_pending = 0
+            WHERE id = ?
+        """;
+        String tagSql = "UPDATE media SET name = ?, author = ?, album = ? WHERE id = ?";
+
+        DatabaseConnections.transaction(connection -> {
+            PreparedStatement technical = DatabaseConnections.prepare(connection, technicalSql);
+            PreparedStatement tags = DatabaseConnections.prepare(connection, tagSql);
+            for(Collection<Media> batch : List.of(tagged, probed)) {
+                for(Media media : batch) {
+                    bindTechnicalMetadata(technical, 0, media);
+                    technical.setInt(7, media.id);
+                    technical.addBatch();
+                }
+            }
+            for(Media media : tagged) {
+                tags.setString(1, media.name);
+                tags.setString(2, media.author);
+                tags.setString(3, media.album);
+                tags.setInt(4, media.id);
+                tags.addBatch();
+            }
+            technical.executeBatch();
+            tags.executeBatch();
+            return null;
+        });
+
+        if(!tagged.isEmpty())
+            LibraryRepository.mediaRead(new ArrayList<>(tagged));
+        if(!probed.isEmpty())
+            LibraryRepository.mediaProbed(new ArrayList<>(probed));
+    }
+
+    // Every cover some media still points at, so CoverArtCache knows what's safe to throw out
+    public static Set<String> getCoverHashes() throws Exception {
+        String sql = "SELECT DISTINCT cover_hash FROM media WHERE cover_hash IS NOT NULL";
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+
+            Set<String> hashes = new HashSet<>();
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next())
+                    hashes.add(rs.getString(1));
+            }
+            return hashes;
+        });
     }
 
     public static void updateMedia(Media data, int index) throws Exception
@@ -150,111 +431,279 @@ public class Database {
             SET name = ?, author = ?, album = ?
             WHERE id = ?
         """;
-        
-        try (PreparedStatement ps = Database.getConnection().prepareStatement(sql)) {
-            ps.setString(1, data.name);
-            ps.setString(2, data.author);
-            ps.setString(3, data.album);
-            ps.setInt(4, index);
 
-            ps.executeUpdate();
+        try {
+            DatabaseConnections.write(connection -> {
+                PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+                ps.setString(1, data.name);
+                ps.setString(2, data.author);
+                ps.setString(3, data.album);
+                ps.setInt(4, index);
+
+                return ps.executeUpdate();
+            });
         } catch (Exception e) {
             throw new RuntimeException("Failed to update media");
         }
 
+        LibraryRepository.mediaUpdated(index, data);
+
     }
 
     public static List<Media> getAllMedia() throws Exception {
-        List<Media> mediaList = new ArrayList<Media>();
-        String sql = "SELECT * FROM media";
-
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
-            while(rs.next()) {
-                Media data = new Media(
-                    rs.getInt("id"),
-                    rs.getString("path"),
-                    rs.getString("name"),
-                    rs.getString("format"),
-                    rs.getString("author"),
-                    rs.getString("album")
-                );
-
-                mediaList.add(data);
+        String sql = "SELECT " + MEDIA_COLUMNS + " FROM media";
+
+        return DatabaseConnections.read(connection -> {
+            List<Media> mediaList = new ArrayList<Media>();
+
+            try(ResultSet rs = DatabaseConnections.prepare(connection, sql).executeQuery()) {
+                while(rs.next()) {
+                    mediaList.add(readMedia(rs, 1));
+                }
             }
-        }
 
+            return mediaList;
+        });
+    }
 
-        return mediaList;
+    // Keyset paging over the library: pass the last Media of the previous page as after (null for the first page).
+    // Each page is one index seek, no matter how deep into the library you are
+    public static List<Media> getMediaPage(MediaSort sortKey, Media after, int limit) throws Exception {
+        String sql = mediaPageSql(sortKey, after != null);
+
+        return DatabaseConnections.read(connection -> {
+            List<Media> page = new ArrayList<>(limit);
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+
+            int param = 1;
+            if(after != null) {
+                ps.setObject(param++, sortKey.keyOf(after));
+                ps.setInt(param++, after.id);
+            }
+            ps.setInt(param, limit);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next())
+                    page.add(readMedia(rs, 1));
+            }
+
+            return page;
+        });
+    }
+
+    // Shared with DatabaseMigrations' plan checks, so they check the query that actually runs
+    static String playlistMediaSql() {
+        return """
+            SELECT pm.probability, pm.repeatability, %s
+            FROM playlist_media pm
+            JOIN media m ON m.id = pm.media_id
+            WHERE pm.playlist_id = ?
+            ORDER BY pm.position, pm.media_id
+        """.formatted(prefixed("m", MEDIA_COLUMNS));
+    }
+
+    static String mediaPageSql(MediaSort sortKey, boolean hasAfter) {
+        return "SELECT " + MEDIA_COLUMNS + " FROM media"
+            + (hasAfter ? " WHERE (" + sortKey.expression + ", id) > (?, ?)" : "")
+            + " ORDER BY " + sortKey.expression + ", id LIMIT ?";
+    }
+
+    // Ranked search over name, author and album. Every word typed has to match the start of a word somewhere,
+    // so "mid nig" finds "Midnight". Best matches come first
+    public static List<Media> searchMedia(String query, int limit) throws Exception {
+        String match = toSearchExpression(query);
+        if(match.isEmpty())
+            return new ArrayList<>();
+
+        String sql = """
+            SELECT %s
+            FROM media_fts f
+            JOIN media m ON m.id = f.rowid
+            WHERE media_fts MATCH ?
+            ORDER BY f.rank
+            LIMIT ?
+        """.formatted(prefixed("m", MEDIA_COLUMNS));
+
+        return DatabaseConnections.read(connection -> {
+            List<Media> results = new ArrayList<>();
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setString(1, match);
+            ps.setInt(2, limit);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next())
+                    results.add(readMedia(rs, 1));
+            }
+
+            return results;
+        });
+    }
+
+    // Turns whatever got typed into an FTS5 query: every word becomes a quoted prefix term, so stray quotes, dashes, etc. can't break the syntax
+    private static String toSearchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+
+        for(String word : query.trim().split("\\s+")) {
+            String cleaned = word.replace("\"", "");
+            if(cleaned.isEmpty())
+                continue;
+
+            if(match.length() > 0)
+                match.append(' ');
+            match.append('"').append(cleaned).append("\"*");
+        }
+
+        return match.toString();
     }
 
     public static List<Media> getMediaInPlaylist(int playlist) throws Exception {
         List<Media> mediaList = new ArrayList<Media>();
-        String sql1 = "SELECT * FROM playlist_media WHERE playlist_id = ?";
-
-        try(PreparedStatement ps1 = Database.getConnection().prepareStatement(sql1)) {
-            ps1.setInt(1, playlist);
-
-            try(ResultSet rs1 = ps1.executeQuery()) {
-                while(rs1.next()) {
-                    String sql2 = "SELECT * FROM media WHERE id = ?";
-
-                    try(PreparedStatement ps2 = Database.getConnection().prepareStatement(sql2)) {
-                        ps2.setInt(1, rs1.getInt("media_id"));
-
-                        try(ResultSet rs2 = ps2.executeQuery()) {
-                            while(rs2.next())
-                            {
-                                Media data = new Media(
-                                    rs2.getInt("id"),
-                                    rs2.getString("path"),
-                                    rs2.getString("name"),
-                                    rs2.getString("format"),
-                                    rs2.getString("author"),
-                                    rs2.getString("album")
-                                );
-
-                                mediaList.add(data);
-                            }
-                        }   
-                    }
+        forEachMediaInPlaylist(playlist, mediaList::add);
+
+        return mediaList;
+    }
+
+    // Streams a playlist's media in position order through one JOIN, so big playlists don't need a query per track
+    // (or a full list in memory if the caller only wants to look at each row once)
+    public static void forEachMediaInPlaylist(int playlist, Consumer<Media> callback) throws Exception {
+        String sql = playlistMediaSql();
+
+        DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setInt(1, playlist);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next()) {
+                    Media media = readMedia(rs, 3);
+                    media.probability = rs.getObject(1) != null ? rs.getDouble(1) : 1; // Column's nullable, DEFAULT only covers inserts that leave it out
+                    media.repeatability = rs.getInt(2);
+                    callback.accept(media);
                 }
             }
-        }
 
-        return mediaList;
+            return null;
+        });
     }
 
     public static Media findMediaById(int id) throws Exception {
-        String sql = "SELECT * FROM media WHERE id = ?";
+        String sql = "SELECT " + MEDIA_COLUMNS + " FROM media WHERE id = ?";
 
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql)) {
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, id);
 
             try(ResultSet rs = ps.executeQuery()) {
                 if(rs.next())
                 {
-                    return new Media(
-                        rs.getInt("id"),
-                        rs.getString("path"),
-                        rs.getString("name"),
-                        rs.getString("format"),
-                        rs.getString("author"),
-                        rs.getString("album")
-                    );
+                    return readMedia(rs, 1);
                 }
-            }   
-        }
+            }
+
+            throw new RuntimeException("Failed find media");
+        });
+    }
+
+    // Goes through the path_key index, returns null if the file isn't in the library
+    public static Media findMediaByPath(String path) throws Exception {
+        String sql = "SELECT " + MEDIA_COLUMNS + " FROM media WHERE path_key = ?";
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setString(1, normalizePath(path));
+
+            try(ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? readMedia(rs, 1) : null;
+            }
+        });
+    }
+
+    // Everything LibraryScanner needs to tell whether a file changed (path + size + mtime), keyed by path_key
+    public static Map<String, Media> getMediaByPathKey() throws Exception {
+        String sql = "SELECT path_key, " + MEDIA_COLUMNS + " FROM media";
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+
+            Map<String, Media> media = new HashMap<>();
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next())
+                    media.put(rs.getString(1), readMedia(rs, 2));
+            }
+            return media;
+        });
+    }
+
+    // Files that moved on disk keep their row (and with it their playlists), they just get the new path. One transaction
+    public static void moveMediaBatch(Map<Integer, String> newPaths) throws Exception {
+        if(newPaths.isEmpty())
+            return;
+
+        String sql = "UPDATE media SET path = ?, path_key = ? WHERE id = ?";
+
+        DatabaseConnections.transaction(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            for(Map.Entry<Integer, String> moved : newPaths.entrySet()) {
+                ps.setString(1, moved.getValue());
+                ps.setString(2, normalizePath(moved.getValue()));
+                ps.setInt(3, moved.getKey());
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        });
+
+        LibraryRepository.mediaMoved(newPaths);
+    }
+
+    // Everything the library has somewhere under a folder, through the path_key index (a range, so no LIKE)
+    public static List<Media> getMediaInFolder(String folder) throws Exception {
+        String sql = "SELECT " + MEDIA_COLUMNS + " FROM media WHERE path_key >= ? AND path_key < ?";
+        String prefix = normalizePath(folder);
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setString(1, prefix + "/");
+            ps.setString(2, prefix + "0"); // '0' comes straight after '/'
 
-        throw new RuntimeException("Failed find media");
+            List<Media> media = new ArrayList<>();
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next())
+                    media.add(readMedia(rs, 1));
+            }
+            return media;
+        });
     }
 
     public static void deleteMedia(int id) throws Exception {
         String sql = "DELETE FROM media WHERE id = ?";
 
-        try(PreparedStatement ps = getConnection().prepareStatement(sql)) {
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, id);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+
+        PlaylistMembership.mediaDeleted(id); // The cascade took it out of every playlist
+        LibraryRepository.mediaRemoved(id);
+    }
+
+    public static void deleteMediaBatch(Collection<Integer> ids) throws Exception {
+        if(ids.isEmpty())
+            return;
+
+        String sql = "DELETE FROM media WHERE id = ?";
+
+        DatabaseConnections.transaction(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            for(int id : ids) {
+                ps.setInt(1, id);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        });
+
+        for(int id : ids)
+            PlaylistMembership.mediaDeleted(id);
+        LibraryRepository.mediaRemoved(ids.stream().mapToInt(Integer::intValue).toArray());
     }
 //#endregion MediaFiles
 
@@ -265,7 +714,8 @@ public class Database {
             VALUES (?, ?)
         """;
 
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        int id = DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql, Statement.RETURN_GENERATED_KEYS);
             ps.setString(1, data.name);
             ps.setBytes(2, ImageUtils.blobToBytes(data.image));
 
@@ -278,23 +728,205 @@ public class Database {
             }
 
             throw new RuntimeException("Failed to create playlist");
-        }
+        });
+
+        data.id = id;
+        LibraryRepository.playlistAdded(data);
+        return id;
     }
 
-    public static void insertToPlaylist(int playlist, int media) throws Exception {
+    // Adds to the end of the playlist. Returns false if it was already in there (the primary key makes that a no-op instead of an error)
+    public static boolean insertToPlaylist(int playlist, int media) throws Exception {
         String sql = """
-            INSERT INTO playlist_media (playlist_id, media_id, position)
+            INSERT OR IGNORE INTO playlist_media (playlist_id, media_id, position)
             VALUES (?, ?, ?)
         """;
 
-        int playlistMediaCount = getMediaCount(playlist);
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql)) {
+        boolean added = DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, playlist);
             ps.setInt(2, media);
-            ps.setInt(3, playlistMediaCount);
+            ps.setLong(3, lastPosition(connection, playlist) + POSITION_GAP);
 
-            ps.executeUpdate();
+            return ps.executeUpdate() > 0;
+        });
+
+        PlaylistMembership.added(playlist, media);
+        if(added)
+            LibraryRepository.playlistContentsChanged(playlist, new int[] { media }, new int[0], new int[0]);
+        return added;
+    }
+
+    // Adds media right after afterMedia (or at the very top if afterMedia is -1)
+    public static boolean insertAt(int playlist, int media, int afterMedia) throws Exception {
+        String sql = """
+            INSERT OR IGNORE INTO playlist_media (playlist_id, media_id, position)
+            VALUES (?, ?, ?)
+        """;
+
+        boolean added = DatabaseConnections.transaction(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setInt(1, playlist);
+            ps.setInt(2, media);
+            ps.setLong(3, positionAfter(connection, playlist, afterMedia));
+
+            return ps.executeUpdate() > 0;
+        });
+
+        PlaylistMembership.added(playlist, media);
+        if(added)
+            LibraryRepository.playlistContentsChanged(playlist, new int[0], new int[] { media }, new int[0]); // Not on the end, so it counts as a move
+        return added;
+    }
+
+    // Straight off the primary key, never touches the rest of the playlist
+    public static boolean isInPlaylist(int playlist, int media) throws Exception {
+        String sql = "SELECT EXISTS (SELECT 1 FROM playlist_media WHERE playlist_id = ? AND media_id = ?)";
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setInt(1, playlist);
+            ps.setInt(2, media);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getInt(1) == 1;
+            }
+        });
+    }
+
+    // Just the ids, for PlaylistMembership
+    public static int[] getPlaylistMemberIds(int playlist) throws Exception {
+        String sql = "SELECT media_id FROM playlist_media WHERE playlist_id = ?";
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setInt(1, playlist);
+
+            int[] ids = new int[16];
+            int count = 0;
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next()) {
+                    if(count == ids.length)
+                        ids = Arrays.copyOf(ids, count * 2);
+                    ids[count++] = rs.getInt(1);
+                }
+            }
+
+            return Arrays.copyOf(ids, count);
+        });
+    }
+
+    // Moves media to right after afterMedia (-1 for the top). Only the moved row gets rewritten, unless the gap it lands in
+    // has run out of room, then the playlist gets respaced first
+    public static void moveInPlaylist(int playlist, int media, int afterMedia) throws Exception {
+        if(media == afterMedia)
+            return;
+
+        String sql = "UPDATE playlist_media SET position = ? WHERE playlist_id = ? AND media_id = ?";
+
+        DatabaseConnections.transaction(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setLong(1, positionAfter(connection, playlist, afterMedia));
+            ps.setInt(2, playlist);
+            ps.setInt(3, media);
+
+            return ps.executeUpdate();
+        });
+
+        LibraryRepository.playlistContentsChanged(playlist, new int[0], new int[] { media }, new int[0]);
+    }
+
+    // Puts the playlist in exactly this order (anything in the playlist but missing from the list keeps its old position)
+    public static void reorderPlaylist(int playlist, List<Integer> mediaIds) throws Exception {
+        DatabaseConnections.transaction(connection -> {
+            writePositions(connection, playlist, mediaIds);
+            return null;
+        });
+
+        LibraryRepository.playlistContentsChanged(playlist, new int[0], mediaIds.stream().mapToInt(Integer::intValue).toArray(), new int[0]);
+    }
+
+    private static long lastPosition(Connection connection, int playlist) throws Exception {
+        PreparedStatement ps = DatabaseConnections.prepare(connection, "SELECT MAX(position) FROM playlist_media WHERE playlist_id = ?");
+        ps.setInt(1, playlist);
+
+        try(ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0; // MAX of nothing is NULL, which comes back as 0
+        }
+    }
+
+    // Finds a free rank between afterMedia and whatever comes after it, respacing the playlist if those two are touching
+    private static long positionAfter(Connection connection, int playlist, int afterMedia) throws Exception {
+        for(int attempt = 0; attempt < 2; attempt++) {
+            Long lower = afterMedia == -1 ? null : positionOf(connection, playlist, afterMedia);
+            if(afterMedia != -1 && lower == null)
+                throw new RuntimeException("Media " + afterMedia + " isn't in playlist " + playlist);
+
+            Long upper = nextPosition(connection, playlist, lower);
+
+            if(upper == null)
+                return (lower == null ? 0 : lower) + POSITION_GAP; // Nothing after it, just tack it on
+            if(lower == null)
+                return upper - POSITION_GAP; // Going on top
+
+            if(upper - lower >= 2)
+                return lower + (upper - lower) / 2;
+
+            rebalancePlaylist(connection, playlist);
+        }
+
+        throw new RuntimeException("Couldn't find a position in playlist " + playlist);
+    }
+
+    private static Long positionOf(Connection connection, int playlist, int media) throws Exception {
+        PreparedStatement ps = DatabaseConnections.prepare(connection, "SELECT position FROM playlist_media WHERE playlist_id = ? AND media_id = ?");
+        ps.setInt(1, playlist);
+        ps.setInt(2, media);
+
+        try(ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : null;
+        }
+    }
+
+    // The first position after lower (or the first one at all if lower is null)
+    private static Long nextPosition(Connection connection, int playlist, Long lower) throws Exception {
+        PreparedStatement ps = DatabaseConnections.prepare(connection, "SELECT MIN(position) FROM playlist_media WHERE playlist_id = ? AND position > ?");
+        ps.setInt(1, playlist);
+        ps.setLong(2, lower == null ? Long.MIN_VALUE : lower);
+
+        try(ResultSet rs = ps.executeQuery()) {
+            if(!rs.next())
+                return null;
+
+            long position = rs.getLong(1);
+            return rs.wasNull() ? null : position;
+        }
+    }
+
+    private static void rebalancePlaylist(Connection connection, int playlist) throws Exception {
+        List<Integer> order = new ArrayList<>();
+        PreparedStatement ps = DatabaseConnections.prepare(connection, "SELECT media_id FROM playlist_media WHERE playlist_id = ? ORDER BY position, media_id");
+        ps.setInt(1, playlist);
+
+        try(ResultSet rs = ps.executeQuery()) {
+            while(rs.next())
+                order.add(rs.getInt(1));
         }
+
+        writePositions(connection, playlist, order);
+    }
+
+    static void writePositions(Connection connection, int playlist, List<Integer> mediaIds) throws Exception {
+        PreparedStatement ps = DatabaseConnections.prepare(connection, "UPDATE playlist_media SET position = ? WHERE playlist_id = ? AND media_id = ?");
+
+        for(int i = 0; i < mediaIds.size(); i++) {
+            ps.setLong(1, (i + 1) * POSITION_GAP);
+            ps.setInt(2, playlist);
+            ps.setInt(3, mediaIds.get(i));
+            ps.addBatch();
+        }
+
+        ps.executeBatch();
     }
 
     public static void updatePlaylistDetails(Playlist data, int index) throws Exception
@@ -305,13 +937,34 @@ public class Database {
             WHERE id = ?
         """;
 
-        try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setString(1, data.name);
             ps.setBytes(2, ImageUtils.blobToBytes(data.image));
             ps.setInt(3, index);
 
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+
+        ThumbnailCache.invalidatePlaylist(index); // Before anyone hears about it, so nobody reloads the old image
+        Playlist updated = new Playlist(index, data.name);
+        updated.hasImage = data.image != null;
+        LibraryRepository.playlistUpdated(updated);
+    }
+
+    // Only touches the name, so the thumbnail doesn't have to be read back out just to be written again
+    public static void renamePlaylist(int id, String name) throws Exception {
+        String sql = "UPDATE playlist SET name = ? WHERE id = ?";
+
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setString(1, name);
+            ps.setInt(2, id);
+
+            return ps.executeUpdate();
+        });
+
+        LibraryRepository.playlistRenamed(id, name);
     }
 
     public static int getMediaCount(int playlistId) throws Exception {
@@ -322,9 +975,8 @@ public class Database {
             WHERE playlist_id = ?
         """;
 
-        try (PreparedStatement ps =
-                 Database.getConnection().prepareStatement(sql)) {
-
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, playlistId);
 
             try (ResultSet rs = ps.executeQuery()) {
@@ -332,59 +984,131 @@ public class Database {
                     return rs.getInt(1);
                 }
             }
-        }
 
-        return 0;
+            return 0;
+        });
     }
 
+    // Leaves the thumbnails out (only says whether there is one), use openPlaylistThumbnail to get at the image
     public static List<Playlist> getAllPlaylists() throws Exception {
-        List<Playlist> mediaList = new ArrayList<Playlist>();
-        String sql = "SELECT * FROM playlist";
-
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
-            while(rs.next()) {
-                Playlist data = new Playlist(
-                    rs.getInt("id"),
-                    rs.getString("name"),
-                    ImageUtils.bytesToBlob(rs.getBytes("thumbnail"))
-                );
-
-                mediaList.add(data);
-            }
-        }
+        String sql = "SELECT " + PLAYLIST_SUMMARY_COLUMNS + " FROM playlist";
 
+        return DatabaseConnections.read(connection -> {
+            List<Playlist> mediaList = new ArrayList<Playlist>();
 
-        return mediaList;
+            try(ResultSet rs = DatabaseConnections.prepare(connection, sql).executeQuery()) {
+                while(rs.next()) {
+                    mediaList.add(readPlaylistSummary(rs, 1));
+                }
+            }
+
+            return mediaList;
+        });
     }
 
+    // Same as getAllPlaylists, no thumbnail bytes
     public static Playlist findPlaylistById(int id) throws Exception {
-        String sql = "SELECT * FROM playlist WHERE id = ?";
+        String sql = "SELECT " + PLAYLIST_SUMMARY_COLUMNS + " FROM playlist WHERE id = ?";
 
-        try(PreparedStatement ps = Database.getConnection().prepareStatement(sql)) {
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, id);
 
             try(ResultSet rs = ps.executeQuery()) {
                 if(rs.next())
                 {
-                    return new Playlist(
-                        rs.getInt("id"),
-                        rs.getString("name"),
-                        ImageUtils.bytesToBlob(rs.getBytes("thumbnail"))
-                    );
+                    return readPlaylistSummary(rs, 1);
                 }
-            }   
-        }
+            }
+
+            throw new RuntimeException("Failed find playlist");
+        });
+    }
+
+    // The thumbnail bytes as a stream for ImageUtils.decodeScaled. Read with a single query and let go of the reader connection
+    // before decoding starts (sqlite's driver hands back the whole blob for getBinaryStream anyway, so there's nothing to gain
+    // from streaming it off the connection). Returns null if there's no thumbnail
+    public static InputStream openPlaylistThumbnail(int id) throws Exception {
+        String sql = "SELECT thumbnail FROM playlist WHERE id = ?";
+
+        byte[] thumbnail = DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setInt(1, id);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getBytes(1) : null;
+            }
+        });
+
+        if(thumbnail == null || thumbnail.length == 0)
+            return null;
 
-        throw new RuntimeException("Failed find playlist");
+        return new ByteArrayInputStream(thumbnail);
     }
 
     public static void deletePlaylist(int id) throws Exception {
         String sql = "DELETE FROM playlist WHERE id = ?";
 
-        try(PreparedStatement ps = getConnection().prepareStatement(sql)) {
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
             ps.setInt(1, id);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+
+        PlaylistMembership.forget(id);
+        LibraryRepository.playlistRemoved(id);
     }
 //#endregion Playlists
+
+//#region Library Roots
+    // Adding a folder that's already there is fine, returns false
+    public static boolean addLibraryRoot(String path) throws Exception {
+        String sql = "INSERT OR IGNORE INTO library_root (path, path_key, added_at) VALUES (?, ?, ?)";
+
+        return DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setString(1, path);
+            ps.setString(2, normalizePath(path));
+            ps.setLong(3, System.currentTimeMillis());
+            return ps.executeUpdate() > 0;
+        });
+    }
+
+    // Only stops scanning it, whatever was found in it stays in the library
+    public static void removeLibraryRoot(String path) throws Exception {
+        String sql = "DELETE FROM library_root WHERE path_key = ?";
+
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setString(1, normalizePath(path));
+            return ps.executeUpdate();
+        });
+    }
+
+    public static List<String> getLibraryRoots() throws Exception {
+        String sql = "SELECT path FROM library_root ORDER BY id";
+
+        return DatabaseConnections.read(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+
+            List<String> roots = new ArrayList<>();
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next())
+                    roots.add(rs.getString(1));
+            }
+            return roots;
+        });
+    }
+
+    public static void markLibraryRootScanned(String path, long scannedAt) throws Exception {
+        String sql = "UPDATE library_root SET last_scan_at = ? WHERE path_key = ?";
+
+        DatabaseConnections.write(connection -> {
+            PreparedStatement ps = DatabaseConnections.prepare(connection, sql);
+            ps.setLong(1, scannedAt);
+            ps.setString(2, normalizePath(path));
+            return ps.executeUpdate();
+        });
+    }
+//#endregion Library Roots
 }
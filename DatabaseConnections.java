@@ -0,0 +1,240 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Owns every connection to the SQLite file.
+// All writes go through one writer thread (SQLite only ever allows one writer anyway), and reads borrow from a
+// small pool of read-only connections. WAL mode lets those readers keep going while a write is happening.
+public class DatabaseConnections {
+    public interface SqlWork<T> {
+        T run(Connection connection) throws Exception;
+    }
+
+    private static final int READER_COUNT = 4;
+    private static final long CHECKPOINT_IDLE_MS = 5000; // How long writes need to stop before we fold the WAL back into the db
+    private static final int SQLITE_OPEN_READONLY = 0x00000001;
+
+    private static Connection writer;
+    private static volatile Thread writerThread;
+    private static ScheduledThreadPoolExecutor writeExecutor;
+    private static BlockingQueue<Connection> readers;
+    private static final List<Connection> allReaders = new ArrayList<>();
+
+    // Compiled statements, kept per connection. A connection is only ever used by one thread at a time, so the inner maps don't need locking
+    private static final Map<Connection, Map<String, PreparedStatement>> statementCache = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Connection> heldReader = new ThreadLocal<>(); // Lets nested reads reuse the connection the thread already has
+
+    private static volatile long lastWriteMillis;
+    private static volatile boolean walDirty;
+
+    public static synchronized boolean isOpen() {
+        return writer != null;
+    }
+
+    public static synchronized void open(String url) throws Exception {
+        if(writer != null)
+            return;
+
+        writeExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "db-writer");
+            thread.setDaemon(true);
+            writerThread = thread;
+            return thread;
+        });
+
+        // The writer has to be opened (and switched to WAL) before any reader, otherwise the readers can't see the -shm file
+        writer = writeExecutor.submit(() -> {
+            Connection connection = DriverManager.getConnection(url);
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode = WAL");
+                statement.execute("PRAGMA synchronous = NORMAL"); // Safe with WAL, only the last commits can be lost on a power cut
+                statement.execute("PRAGMA foreign_keys = ON");
+                statement.execute("PRAGMA busy_timeout = 5000");
+                statement.execute("PRAGMA temp_store = MEMORY");
+                statement.execute("PRAGMA cache_size = -16000"); // 16MB (negative means KiB)
+                statement.execute("PRAGMA mmap_size = 268435456"); // 256MB
+            }
+            return connection;
+        }).get();
+
+        readers = new ArrayBlockingQueue<>(READER_COUNT);
+        for(int i = 0; i < READER_COUNT; i++) {
+            Properties properties = new Properties();
+            properties.setProperty("open_mode", String.valueOf(SQLITE_OPEN_READONLY));
+
+            Connection reader = DriverManager.getConnection(url, properties);
+            try(Statement statement = reader.createStatement()) {
+                statement.execute("PRAGMA query_only = ON");
+                statement.execute("PRAGMA busy_timeout = 5000");
+                statement.execute("PRAGMA cache_size = -8000");
+                statement.execute("PRAGMA mmap_size = 268435456");
+            }
+
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+
+        writeExecutor.scheduleWithFixedDelay(DatabaseConnections::checkpointIfIdle, 1, 1, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(DatabaseConnections::close, "db-shutdown"));
+    }
+
+    public static <T> T read(SqlWork<T> work) throws Exception {
+        // The writer thread reads through its own connection so it sees whatever it hasn't committed yet
+        if(Thread.currentThread() == writerThread)
+            return work.run(writer);
+
+        Connection held = heldReader.get();
+        if(held != null)
+            return work.run(held);
+
+        BlockingQueue<Connection> pool = readers();
+        Connection connection = pool.take();
+        heldReader.set(connection);
+        try {
+            return work.run(connection);
+        } finally {
+            heldReader.remove();
+            pool.add(connection);
+        }
+    }
+
+    public static <T> T write(SqlWork<T> work) throws Exception {
+        if(Thread.currentThread() == writerThread)
+            return work.run(writer);
+
+        if(writeExecutor == null)
+            throw new IllegalStateException("Database hasn't been opened yet");
+
+        try {
+            return writeExecutor.submit(() -> {
+                try {
+                    return work.run(writer);
+                } finally {
+                    lastWriteMillis = System.currentTimeMillis();
+                    walDirty = true;
+                }
+            }).get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    // Runs the work as one transaction on the writer, rolling everything back if it throws
+    public static <T> T transaction(SqlWork<T> work) throws Exception {
+        return write(connection -> {
+            boolean wasAutoCommit = connection.getAutoCommit();
+            if(!wasAutoCommit) // Already inside a transaction, just join it
+                return work.run(connection);
+
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+            } catch(Exception e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    // Hands back an already compiled statement for this connection, so callers must NOT close it (only their ResultSets).
+    // Running the same sql again while its last ResultSet is still being read will close that ResultSet, so don't nest a query inside itself.
+    public static PreparedStatement prepare(Connection connection, String sql) throws Exception {
+        return prepare(connection, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    public static PreparedStatement prepare(Connection connection, String sql, int autoGeneratedKeys) throws Exception {
+        Map<String, PreparedStatement> statements = statementCache.computeIfAbsent(connection, c -> new HashMap<>());
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "#keys#" + sql : sql;
+
+        PreparedStatement statement = statements.get(key);
+        if(statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql, autoGeneratedKeys);
+            statements.put(key, statement);
+        } else {
+            statement.clearParameters();
+        }
+
+        return statement;
+    }
+
+    private static void closeStatements(Connection connection) {
+        Map<String, PreparedStatement> statements = statementCache.remove(connection);
+        if(statements == null)
+            return;
+
+        for(PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch(Exception ignored) {}
+        }
+    }
+
+    private static BlockingQueue<Connection> readers() {
+        if(readers == null)
+            throw new IllegalStateException("Database hasn't been opened yet");
+        return readers;
+    }
+
+    // Runs on the writer thread, so it never races a write
+    private static void checkpointIfIdle() {
+        if(!walDirty || System.currentTimeMillis() - lastWriteMillis < CHECKPOINT_IDLE_MS)
+            return;
+
+        try(Statement statement = writer.createStatement()) {
+            statement.execute("PRAGMA wal_checkpoint(PASSIVE)");
+            walDirty = false;
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static synchronized void close() {
+        if(writer == null)
+            return;
+
+        try {
+            writeExecutor.submit(() -> {
+                try(Statement statement = writer.createStatement()) {
+                    statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                }
+                closeStatements(writer);
+                writer.close();
+                return null;
+            }).get(5, TimeUnit.SECONDS);
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+        writeExecutor.shutdownNow();
+
+        for(Connection reader : allReaders) {
+            closeStatements(reader);
+            try {
+                reader.close();
+            } catch(Exception ignored) {}
+        }
+
+        allReaders.clear();
+        readers = null;
+        writer = null;
+        writeExecutor = null;
+    }
+}
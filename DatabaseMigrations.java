@@ -0,0 +1,374 @@
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Versioned schema changes, tracked through PRAGMA user_version.
+// Migration n moves the db from version n-1 to n, so NEVER reorder or edit one that's already shipped, just add a new one at the end.
+public class DatabaseMigrations {
+    private interface Migration {
+        void apply(Connection connection) throws Exception;
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+        DatabaseMigrations::createBaseTables,       // 1
+        DatabaseMigrations::addPathKeyIndex,        // 2
+        DatabaseMigrations::addPlaylistOrderIndex,  // 3
+        DatabaseMigrations::addSortIndexes,         // 4
+        DatabaseMigrations::addSearchIndex,         // 5
+        DatabaseMigrations::spacePlaylistPositions, // 6
+        DatabaseMigrations::addTechnicalMetadata,   // 7
+        DatabaseMigrations::addCoverHashIndex,      // 8
+        DatabaseMigrations::addLibraryRoots,        // 9
+        DatabaseMigrations::addReadPending          // 10
+    );
+
+    // Queries that have to stay on an index. If SQLite ever plans a full scan or a temp sort for one of these, startup fails loudly
+    private static final List<PlanCheck> PLAN_CHECKS = new ArrayList<>(List.of(
+        new PlanCheck(
+            "playlist media in order",
+            Database.playlistMediaSql(),
+            "idx_playlist_media_order"
+        ),
+        new PlanCheck(
+            "next playlist position",
+            "SELECT MIN(position) FROM playlist_media WHERE playlist_id = ? AND position > ?",
+            "idx_playlist_media_order"
+        ),
+        new PlanCheck(
+            "playlist membership",
+            "SELECT EXISTS (SELECT 1 FROM playlist_media WHERE playlist_id = ? AND media_id = ?)",
+            "sqlite_autoindex_playlist_media_1" // The (playlist_id, media_id) primary key
+        ),
+        new PlanCheck(
+            "covers in use",
+            "SELECT DISTINCT cover_hash FROM media WHERE cover_hash IS NOT NULL",
+            "idx_media_cover_hash"
+        ),
+        new PlanCheck(
+            "media by path",
+            "SELECT id FROM media WHERE path_key = ?",
+            "idx_media_path_key"
+        ),
+        new PlanCheck(
+            "media in folder",
+            "SELECT id FROM media WHERE path_key >= ? AND path_key < ?",
+            "idx_media_path_key"
+        )
+    ));
+
+    static {
+        for(Database.MediaSort sort : Database.MediaSort.values()) {
+            String index = "idx_media_sort_" + sort.name().toLowerCase();
+            PLAN_CHECKS.add(new PlanCheck("first page by " + sort, Database.mediaPageSql(sort, false), index));
+            PLAN_CHECKS.add(new PlanCheck("next page by " + sort, Database.mediaPageSql(sort, true), index));
+        }
+    }
+
+    public static void migrate(Connection connection) throws Exception {
+        int version = getUserVersion(connection);
+
+        for(int i = version; i < MIGRATIONS.size(); i++) {
+            connection.setAutoCommit(false);
+            try {
+                MIGRATIONS.get(i).apply(connection);
+
+                try(Statement statement = connection.createStatement()) {
+                    statement.execute("PRAGMA user_version = " + (i + 1));
+                }
+
+                connection.commit();
+            } catch(Exception e) {
+                connection.rollback();
+                throw new IllegalStateException("Migration " + (i + 1) + " failed", e);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    public static void verifyQueryPlans(Connection connection) throws Exception {
+        for(PlanCheck check : PLAN_CHECKS) {
+            List<String> plan = new ArrayList<>();
+
+            try(Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("EXPLAIN QUERY PLAN " + check.sql)) {
+                while(rs.next())
+                    plan.add(rs.getString("detail"));
+            }
+
+            boolean regressed = plan.stream().noneMatch(step -> step.contains(check.requiredIndex));
+            for(String step : plan) {
+                if((step.startsWith("SCAN") && !step.contains("USING") && !step.equals("SCAN CONSTANT ROW")) || step.contains("USE TEMP B-TREE"))
+                    regressed = true; // A full table scan or a sort we were supposed to get from the index (a constant row is just SELECT EXISTS (...)'s outer select)
+            }
+
+            if(regressed)
+                throw new IllegalStateException("Query plan for \"" + check.name + "\" no longer uses " + check.requiredIndex + ":\n" + String.join("\n", plan));
+        }
+    }
+
+    private static int getUserVersion(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+//#region Migrations
+    private static void createBaseTables(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS media (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                path TEXT NOT NULL,
+                name TEXT NOT NULL,
+                format TEXT NOT NULL,
+                author TEXT,
+                album TEXT
+                )"""
+            );
+
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS playlist (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                name TEXT NOT NULL,
+                thumbnail BLOB
+                )"""
+            );
+
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS playlist_media (
+                playlist_id INTEGER NOT NULL,
+                media_id INTEGER NOT NULL,
+                position INTEGER NOT NULL,
+                probability REAL DEFAULT 1,
+                repeatability INTEGER DEFAULT 0,
+
+                PRIMARY KEY (playlist_id, media_id),
+
+                FOREIGN KEY (playlist_id)
+                    REFERENCES playlist(id)
+                    ON DELETE CASCADE,
+
+                FOREIGN KEY (media_id)
+                    REFERENCES media(id)
+                    ON DELETE CASCADE
+                )"""
+            );
+        }
+    }
+
+    // Adds media.path_key (see Database.normalizePath) with a unique index on it.
+    // Older dbs could have the same file in there more than once, so those get merged into the lowest id first.
+    // Keys come from pathKeyV2, not normalizePath itself, so changing that later can't change what this migration does
+    private static void addPathKeyIndex(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE media ADD COLUMN path_key TEXT");
+        }
+
+        Map<String, Integer> firstIdForKey = new HashMap<>();
+        Map<Integer, String> keys = new LinkedHashMap<>();
+        Map<Integer, Integer> duplicates = new LinkedHashMap<>();
+
+        try(Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("SELECT id, path FROM media ORDER BY id")) {
+            while(rs.next()) {
+                int id = rs.getInt(1);
+                String key = pathKeyV2(rs.getString(2));
+
+                Integer kept = firstIdForKey.putIfAbsent(key, id);
+                if(kept == null)
+                    keys.put(id, key);
+                else
+                    duplicates.put(id, kept);
+            }
+        }
+
+        try(PreparedStatement repoint = connection.prepareStatement("UPDATE OR IGNORE playlist_media SET media_id = ? WHERE media_id = ?");
+            PreparedStatement delete = connection.prepareStatement("DELETE FROM media WHERE id = ?")) {
+            for(Map.Entry<Integer, Integer> duplicate : duplicates.entrySet()) {
+                repoint.setInt(1, duplicate.getValue());
+                repoint.setInt(2, duplicate.getKey());
+                repoint.executeUpdate();
+
+                delete.setInt(1, duplicate.getKey()); // Anything UPDATE OR IGNORE left behind goes with it through the cascade
+                delete.executeUpdate();
+            }
+        }
+
+        try(PreparedStatement update = connection.prepareStatement("UPDATE media SET path_key = ? WHERE id = ?")) {
+            for(Map.Entry<Integer, String> key : keys.entrySet()) {
+                update.setString(1, key.getValue());
+                update.setInt(2, key.getKey());
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("CREATE UNIQUE INDEX idx_media_path_key ON media(path_key)");
+        }
+    }
+
+    // Database.normalizePath as it was when addPathKeyIndex shipped. If that ever changes, re-keying goes in a new migration
+    private static String pathKeyV2(String path) {
+        String normalized;
+        try {
+            normalized = Paths.get(path).toAbsolutePath().normalize().toString();
+        } catch(Exception e) {
+            normalized = path;
+        }
+
+        normalized = normalized.replace('\\', '/');
+        if(System.getProperty("os.name").toLowerCase().startsWith("windows"))
+            normalized = normalized.toLowerCase();
+
+        return normalized;
+    }
+
+    // Covering index for reading a playlist in order, media_id is in there so the JOIN never has to touch the table itself
+    private static void addPlaylistOrderIndex(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("CREATE INDEX idx_playlist_media_order ON playlist_media(playlist_id, position, media_id)");
+        }
+    }
+
+    // Adds media.added_at plus one index per Database.MediaSort, each ending in id so keyset paging can seek straight to the next page.
+    // The expressions have to match MediaSort exactly or SQLite won't use them. They're written out as they were when this shipped,
+    // a new or changed sort gets its index from a new migration (the plan checks catch one that's missing)
+    private static void addSortIndexes(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE media ADD COLUMN added_at INTEGER NOT NULL DEFAULT 0");
+            statement.execute("UPDATE media SET added_at = CAST(strftime('%s', 'now') AS INTEGER) * 1000"); // We never knew when these were added, so they all count as now (the id keeps their old order)
+
+            statement.execute("CREATE INDEX idx_media_sort_name ON media(name COLLATE NOCASE, id)");
+            statement.execute("CREATE INDEX idx_media_sort_author ON media(IFNULL(author, '') COLLATE NOCASE, id)");
+            statement.execute("CREATE INDEX idx_media_sort_album ON media(IFNULL(album, '') COLLATE NOCASE, id)");
+            statement.execute("CREATE INDEX idx_media_sort_date_added ON media(added_at, id)");
+        }
+    }
+
+    // Full text index over name/author/album for Database.searchMedia.
+    // It's an external content table (reads the text back out of media), and the triggers keep it in sync with every write
+    private static void addSearchIndex(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("""
+                CREATE VIRTUAL TABLE media_fts USING fts5(
+                name, author, album,
+                content = 'media',
+                content_rowid = 'id',
+                tokenize = 'unicode61 remove_diacritics 2',
+                prefix = '1 2 3'
+                )"""
+            );
+
+            statement.execute("""
+                CREATE TRIGGER media_fts_insert AFTER INSERT ON media BEGIN
+                    INSERT INTO media_fts (rowid, name, author, album) VALUES (new.id, new.name, new.author, new.album);
+                END"""
+            );
+
+            statement.execute("""
+                CREATE TRIGGER media_fts_delete AFTER DELETE ON media BEGIN
+                    INSERT INTO media_fts (media_fts, rowid, name, author, album) VALUES ('delete', old.id, old.name, old.author, old.album);
+                END"""
+            );
+
+            statement.execute("""
+                CREATE TRIGGER media_fts_update AFTER UPDATE OF name, author, album ON media BEGIN
+                    INSERT INTO media_fts (media_fts, rowid, name, author, album) VALUES ('delete', old.id, old.name, old.author, old.album);
+                    INSERT INTO media_fts (rowid, name, author, album) VALUES (new.id, new.name, new.author, new.album);
+                END"""
+            );
+
+            statement.execute("INSERT INTO media_fts (media_fts) VALUES ('rebuild')"); // Index whatever's already in the library
+        }
+    }
+
+    // Positions used to be 0, 1, 2... from a COUNT(*) (with duplicates once something got removed and re-added).
+    // Respaces every playlist 1024 apart (Database.POSITION_GAP when this shipped), keeping the order they were showing in
+    private static void spacePlaylistPositions(Connection connection) throws Exception {
+        Map<Integer, List<Integer>> playlists = new LinkedHashMap<>();
+
+        try(Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("SELECT playlist_id, media_id FROM playlist_media ORDER BY playlist_id, position, media_id")) {
+            while(rs.next())
+                playlists.computeIfAbsent(rs.getInt(1), id -> new ArrayList<>()).add(rs.getInt(2));
+        }
+
+        try(PreparedStatement update = connection.prepareStatement("UPDATE playlist_media SET position = ? WHERE playlist_id = ? AND media_id = ?")) {
+            for(Map.Entry<Integer, List<Integer>> playlist : playlists.entrySet()) {
+                List<Integer> mediaIds = playlist.getValue();
+                for(int i = 0; i < mediaIds.size(); i++) {
+                    update.setLong(1, (i + 1) * 1024L);
+                    update.setInt(2, playlist.getKey());
+                    update.setInt(3, mediaIds.get(i));
+                    update.addBatch();
+                }
+            }
+            update.executeBatch();
+        }
+    }
+
+    // What MediaFileHandler.readTechnicalMetadata reads out of each file, so it only has to happen once per file.
+    // file_size + file_mtime are the fingerprint it was read at, everything stays NULL until the file gets probed
+    private static void addTechnicalMetadata(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE media ADD COLUMN duration_ms INTEGER");
+            statement.execute("ALTER TABLE media ADD COLUMN bitrate INTEGER");
+            statement.execute("ALTER TABLE media ADD COLUMN codec TEXT");
+            statement.execute("ALTER TABLE media ADD COLUMN file_size INTEGER");
+            statement.execute("ALTER TABLE media ADD COLUMN file_mtime INTEGER");
+            statement.execute("ALTER TABLE media ADD COLUMN cover_hash TEXT");
+        }
+    }
+
+    // media.cover_hash is what maps a song to its entry in CoverArtCache. Indexed so the cache can ask which covers are still in use
+    // without a full scan, and songs off the same album (same hash) sit next to each other
+    private static void addCoverHashIndex(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("CREATE INDEX IF NOT EXISTS idx_media_cover_hash ON media(cover_hash)");
+        }
+    }
+
+    // Folders LibraryScanner keeps the library in sync with
+    private static void addLibraryRoots(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS library_root (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                path TEXT NOT NULL,
+                path_key TEXT NOT NULL UNIQUE,
+                added_at INTEGER NOT NULL,
+                last_scan_at INTEGER
+                )"""
+            );
+        }
+    }
+
+    // Set on rows LibraryScanner inserted before reading their tags/technical metadata, cleared once it has.
+    // Anything still set at the next scan gets read again, so quitting halfway through an import doesn't leave file names as titles
+    private static void addReadPending(Connection connection) throws Exception {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE media ADD COLUMN read_pending INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+//#endregion Migrations
+
+    private static class PlanCheck {
+        final String name;
+        final String sql;
+        final String requiredIndex;
+
+        PlanCheck(String name, String sql, String requiredIndex) {
+            this.name = name;
+            this.sql = sql;
+            this.requiredIndex = requiredIndex;
+        }
+    }
+}
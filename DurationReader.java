@@ -0,0 +1,346 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Works out how long a file is from its headers, without decoding anything or starting ffprobe.
+// MP3: Xing/Info or VBRI frame count (minus the LAME encoder delay/padding), otherwise the bitrate of the first frames.
+// FLAC: STREAMINFO. WAV: data chunk size / byte rate. Ogg: granule position of the last page. MP4: mvhd.
+// Only ever reads a few KB (plus the last 64KB for Ogg). Returns 0 if it can't tell
+public class DurationReader {
+    private static final int MP3_SCAN_BYTES = 64 * 1024; // How far to look for the first frame, and how much to average the bitrate over without a Xing header
+    private static final int OGG_TAIL_BYTES = 64 * 1024; // Last page is well inside this
+
+    private static final int[][] MP3_BITRATES = { // kbps, [version/layer row][index]
+        { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 }, // MPEG1 layer I
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },    // MPEG1 layer II
+        { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },     // MPEG1 layer III
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },    // MPEG2/2.5 layer I
+        { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }          // MPEG2/2.5 layer II & III
+    };
+    private static final int[][] MP3_SAMPLE_RATES = {
+        { 11025, 12000, 8000 },  // MPEG2.5
+        null,                    // Reserved
+        { 22050, 24000, 16000 }, // MPEG2
+        { 44100, 48000, 32000 }  // MPEG1
+    };
+
+    public static long readDurationMs(String path) {
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return readDurationMs(channel);
+        } catch(Exception e) {
+            return 0;
+        }
+    }
+
+    private static long readDurationMs(FileChannel channel) throws Exception {
+        long size = channel.size();
+        if(size < 12)
+            return 0;
+
+        ByteBuffer head = read(channel, 0, 12);
+        long offset = 0;
+
+        if(matches(head, 0, "ID3")) {
+            offset = 10 + syncSafe(head, 6) + ((head.get(5) & 0x10) != 0 ? 10 : 0);
+            if(offset + 12 > size)
+                return 0;
+            head = read(channel, offset, 12);
+        }
+
+        if(matches(head, 0, "fLaC"))
+            return flac(channel, offset + 4);
+        if(matches(head, 0, "OggS"))
+            return ogg(channel, offset);
+        if(matches(head, 4, "ftyp"))
+            return mp4(channel);
+        if(matches(head, 0, "RIFF") && matches(head, 8, "WAVE"))
+            return wav(channel);
+
+        return mp3(channel, offset);
+    }
+
+//#region MP3
+    private static class Mp3Frame {
+        int version; // 3 = MPEG1, 2 = MPEG2, 0 = MPEG2.5
+        int layer; // 1, 2 or 3
+        int bitrate; // kbps
+        int sampleRate;
+        int channels;
+        int length; // Bytes, header included
+        int samples;
+    }
+
+    private static long mp3(FileChannel channel, long start) throws Exception {
+        long size = channel.size();
+        ByteBuffer data = read(channel, start, (int) Math.min(MP3_SCAN_BYTES, size - start));
+
+        int first = -1;
+        Mp3Frame frame = null;
+        for(int i = 0; i + 4 <= data.limit(); i++) {
+            frame = mp3Frame(data, i);
+            // One good header could be chance, so the one after it has to line up too
+            if(frame != null && (i + frame.length + 4 > data.limit() || mp3Frame(data, i + frame.length) != null)) {
+                first = i;
+                break;
+            }
+        }
+        if(first < 0)
+            return 0;
+
+        long samples = mp3XingSamples(data, first, frame);
+        if(samples > 0)
+            return samples * 1000 / frame.sampleRate;
+
+        // No VBR header, so go off the average bitrate of the frames we can see (exact for CBR, which is most files like this)
+        long audioBytes = size - start - first - (hasId3v1(channel) ? 128 : 0);
+        long bits = 0;
+        long frames = 0;
+        long frameSamples = 0;
+        for(int pos = first; pos + 4 <= data.limit(); ) {
+            Mp3Frame next = mp3Frame(data, pos);
+            if(next == null)
+                break;
+
+            bits += (long) next.bitrate * 1000 * next.samples / next.sampleRate;
+            frameSamples += next.samples;
+            frames++;
+            pos += next.length;
+        }
+        if(frames == 0 || bits == 0)
+            return 0;
+
+        double averageBitrate = bits * (double) frame.sampleRate / frameSamples;
+        return (long) (audioBytes * 8 * 1000 / averageBitrate);
+    }
+
+    private static Mp3Frame mp3Frame(ByteBuffer data, int pos) {
+        if(pos + 4 > data.limit())
+            return null;
+
+        int header = data.getInt(pos);
+        if((header & 0xFFE00000) != 0xFFE00000)
+            return null;
+
+        Mp3Frame frame = new Mp3Frame();
+        frame.version = (header >> 19) & 3;
+        int layerBits = (header >> 17) & 3;
+        int bitrateIndex = (header >> 12) & 0xF;
+        int rateIndex = (header >> 10) & 3;
+        int padding = (header >> 9) & 1;
+
+        if(frame.version == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3)
+            return null; // Reserved values (or "free" bitrate, which we can't size)
+
+        frame.layer = 4 - layerBits;
+        frame.channels = ((header >> 6) & 3) == 3 ? 1 : 2;
+        frame.sampleRate = MP3_SAMPLE_RATES[frame.version][rateIndex];
+
+        boolean mpeg1 = frame.version == 3;
+        int row = mpeg1 ? frame.layer - 1 : (frame.layer == 1 ? 3 : 4);
+        frame.bitrate = MP3_BITRATES[row][bitrateIndex];
+
+        if(frame.layer == 1) {
+            frame.samples = 384;
+            frame.length = (12 * frame.bitrate * 1000 / frame.sampleRate + padding) * 4;
+        } else {
+            frame.samples = frame.layer == 3 && !mpeg1 ? 576 : 1152;
+            frame.length = (frame.samples / 8) * frame.bitrate * 1000 / frame.sampleRate + padding;
+        }
+
+        return frame.length > 4 ? frame : null;
+    }
+
+    // Total samples from a Xing/Info or VBRI header in the first frame, 0 if there isn't one
+    private static long mp3XingSamples(ByteBuffer data, int frameStart, Mp3Frame frame) {
+        int sideInfo = frame.version == 3 ? (frame.channels == 1 ? 17 : 32) : (frame.channels == 1 ? 9 : 17);
+        int xing = frameStart + 4 + sideInfo;
+
+        if(matches(data, xing, "Xing") || matches(data, xing, "Info")) {
+            int flags = data.getInt(xing + 4);
+            if((flags & 1) == 0)
+                return 0;
+
+            long frames = data.getInt(xing + 8) & 0xFFFFFFFFL;
+            long samples = frames * frame.samples;
+
+            // The LAME tag comes right after the optional fields and knows how much silence the encoder added at each end
+            int lame = xing + 8 + 4 + ((flags & 2) != 0 ? 4 : 0) + ((flags & 4) != 0 ? 100 : 0) + ((flags & 8) != 0 ? 4 : 0);
+            if(lame + 24 <= data.limit() && (matches(data, lame, "LAME") || matches(data, lame, "Lavf") || matches(data, lame, "Lavc"))) {
+                int packed = ((data.get(lame + 21) & 0xFF) << 16) | ((data.get(lame + 22) & 0xFF) << 8) | (data.get(lame + 23) & 0xFF);
+                long trimmed = samples - (packed >> 12) - (packed & 0xFFF);
+                if(trimmed > 0)
+                    samples = trimmed;
+            }
+
+            return samples;
+        }
+
+        int vbri = frameStart + 4 + 32; // Always right after 32 bytes, whatever the channel mode
+        if(matches(data, vbri, "VBRI") && vbri + 18 <= data.limit())
+            return (data.getInt(vbri + 14) & 0xFFFFFFFFL) * frame.samples;
+
+        return 0;
+    }
+
+    private static boolean hasId3v1(FileChannel channel) throws Exception {
+        return channel.size() >= 128 && matches(read(channel, channel.size() - 128, 3), 0, "TAG");
+    }
+//#endregion MP3
+
+//#region FLAC
+    private static long flac(FileChannel channel, long offset) throws Exception {
+        ByteBuffer header = read(channel, offset, 4 + 34);
+        if(header.limit() < 38 || (header.get(0) & 0x7F) != 0)
+            return 0; // STREAMINFO has to be the first block
+
+        return streamInfoMs(header, 4);
+    }
+
+    private static long streamInfoMs(ByteBuffer data, int pos) {
+        if(pos + 18 > data.limit())
+            return 0;
+
+        int sampleRate = ((data.get(pos + 10) & 0xFF) << 12) | ((data.get(pos + 11) & 0xFF) << 4) | ((data.get(pos + 12) & 0xF0) >> 4);
+        long samples = ((long) (data.get(pos + 13) & 0x0F) << 32) | (data.getInt(pos + 14) & 0xFFFFFFFFL);
+
+        return sampleRate > 0 ? samples * 1000 / sampleRate : 0;
+    }
+//#endregion FLAC
+
+//#region WAV
+    private static long wav(FileChannel channel) throws Exception {
+        long size = channel.size();
+        long pos = 12;
+        long byteRate = 0;
+
+        while(pos + 8 <= size) {
+            ByteBuffer chunk = read(channel, pos, 8 + 12).order(ByteOrder.LITTLE_ENDIAN);
+            long length = chunk.getInt(4) & 0xFFFFFFFFL;
+
+            if(matches(chunk, 0, "fmt ") && chunk.limit() >= 8 + 12)
+                byteRate = chunk.getInt(8 + 8) & 0xFFFFFFFFL;
+            else if(matches(chunk, 0, "data") && byteRate > 0)
+                return Math.min(length, size - pos - 8) * 1000 / byteRate; // Streamed files can leave the size as 0xFFFFFFFF
+
+            pos += 8 + length + (length & 1);
+        }
+
+        return 0;
+    }
+//#endregion WAV
+
+//#region Ogg
+    private static long ogg(FileChannel channel, long offset) throws Exception {
+        ByteBuffer first = read(channel, offset, 27 + 255 + 64).order(ByteOrder.LITTLE_ENDIAN);
+        if(first.limit() < 28)
+            return 0;
+
+        int serial = first.getInt(14);
+        int body = 27 + (first.get(26) & 0xFF);
+
+        long sampleRate;
+        long preSkip = 0;
+        if(matches(first, body, "\u0001vorbis")) {
+            sampleRate = first.getInt(body + 12) & 0xFFFFFFFFL;
+        } else if(matches(first, body, "OpusHead")) {
+            sampleRate = 48000; // Opus granules always count at 48kHz, whatever the input was
+            preSkip = first.getShort(body + 10) & 0xFFFF;
+        } else if(matches(first, body, "\u007FFLAC")) {
+            // 0x7F "FLAC", version, header count, "fLaC", then a normal STREAMINFO block
+            return streamInfoMs(first.order(ByteOrder.BIG_ENDIAN), body + 13 + 4);
+        } else {
+            return 0;
+        }
+
+        // The last page of the stream has the total sample count as its granule position
+        long size = channel.size();
+        int tailLength = (int) Math.min(OGG_TAIL_BYTES, size - offset);
+        ByteBuffer tail = read(channel, size - tailLength, tailLength).order(ByteOrder.LITTLE_ENDIAN);
+
+        for(int i = tail.limit() - 27; i >= 0; i--) {
+            if(matches(tail, i, "OggS") && tail.getInt(i + 14) == serial) {
+                long granule = tail.getLong(i + 6);
+                if(granule > 0 && sampleRate > 0)
+                    return Math.max(0, granule - preSkip) * 1000 / sampleRate;
+            }
+        }
+
+        return 0;
+    }
+//#endregion Ogg
+
+//#region MP4
+    private static long mp4(FileChannel channel) throws Exception {
+        long size = channel.size();
+        long pos = 0;
+
+        while(pos + 8 <= size) {
+            ByteBuffer header = read(channel, pos, 16);
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            int headerLength = 8;
+            if(boxSize == 1) {
+                boxSize = header.getLong(8);
+                headerLength = 16;
+            } else if(boxSize == 0) {
+                boxSize = size - pos;
+            }
+            if(boxSize < headerLength)
+                return 0;
+
+            if(matches(header, 4, "moov")) {
+                // mvhd is (nearly always) the first thing in moov, so this doesn't need to read the rest of it
+                long child = pos + headerLength;
+                long end = pos + boxSize;
+                while(child + 8 <= end) {
+                    ByteBuffer box = read(channel, child, 8 + 32);
+                    long childSize = box.getInt(0) & 0xFFFFFFFFL;
+                    if(childSize < 8)
+                        return 0;
+
+                    if(matches(box, 4, "mvhd")) {
+                        boolean wide = box.get(8) == 1; // Version 1 uses 64 bit times
+                        long timescale = (wide ? box.getInt(8 + 20) : box.getInt(8 + 12)) & 0xFFFFFFFFL;
+                        long duration = wide ? box.getLong(8 + 24) : box.getInt(8 + 16) & 0xFFFFFFFFL;
+                        return timescale > 0 ? duration * 1000 / timescale : 0;
+                    }
+
+                    child += childSize;
+                }
+                return 0;
+            }
+
+            pos += boxSize;
+        }
+
+        return 0;
+    }
+//#endregion MP4
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean matches(ByteBuffer data, int from, String text) {
+        if(from < 0 || from + text.length() > data.limit())
+            return false;
+
+        for(int i = 0; i < text.length(); i++) {
+            if((data.get(from + i) & 0xFF) != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int syncSafe(ByteBuffer data, int from) {
+        return ((data.get(from) & 0x7F) << 21) | ((data.get(from + 1) & 0x7F) << 14) | ((data.get(from + 2) & 0x7F) << 7) | (data.get(from + 3) & 0x7F);
+    }
+}
@@ -0,0 +1,276 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+// One queue for all the per-file work rows need (re-reading changed files, pulling cover art), instead of every row
+// starting its own SwingWorker. Only a few files get read at once, rows on screen go first, two rows asking for the same
+// thing from the same file share one read, and rows that scroll away or get thrown out cancel whatever they haven't started yet.
+// Results are handed back on the EDT.
+public class ExtractionScheduler {
+    public enum Priority {
+        VISIBLE,   // On screen right now
+        NEARBY,    // Just off screen, likely to be scrolled to next
+        BACKGROUND // Nobody's looking at it (LibraryScanner filling in new files)
+    }
+
+    // What a row holds onto so it can change its mind later
+    public static class Request {
+        private final Task task;
+        private final Consumer<Object> onDone;
+        private Priority priority;
+        private volatile boolean cancelled; // Read on the EDT when results come back
+
+        private Request(Task task, Priority priority, Consumer<Object> onDone) {
+            this.task = task;
+            this.priority = priority;
+            this.onDone = onDone;
+        }
+
+        public void setPriority(Priority priority) {
+            synchronized(lock) {
+                if(cancelled || this.priority == priority)
+                    return;
+                this.priority = priority;
+                task.requeue();
+            }
+        }
+
+        // Won't stop a read that's already started, but the result won't be handed to this request
+        public void cancel() {
+            synchronized(lock) {
+                if(cancelled)
+                    return;
+                cancelled = true;
+                task.requests.remove(this);
+
+                if(task.requests.isEmpty() && !task.started) {
+                    unqueue(task);
+                    tasks.remove(task.key);
+                    cancelledCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        final String key; // kind + path, see submit
+        final Callable<?> work;
+        final List<Request> requests = new ArrayList<>();
+        final long queuedAt = System.nanoTime();
+        Priority queuedAs;
+        boolean started;
+
+        Task(String key, Callable<?> work) {
+            this.key = key;
+            this.work = work;
+        }
+
+        // Best priority out of everyone still waiting on it
+        Priority priority() {
+            Priority best = Priority.BACKGROUND;
+            for(Request request : requests) {
+                if(request.priority.ordinal() < best.ordinal())
+                    best = request.priority;
+            }
+            return best;
+        }
+
+        void requeue() {
+            if(started)
+                return;
+            Priority priority = priority();
+            if(priority != queuedAs) {
+                unqueue(this);
+                enqueue(this);
+            }
+        }
+    }
+
+    private static final int THREADS = Integer.getInteger("midnight.extractionThreads", Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final Object lock = new Object();
+    private static final Map<String, Task> tasks = new HashMap<>(); // Queued or running, by kind + path
+    private static final List<LinkedHashSet<Task>> queues = new ArrayList<>(); // One per priority (by ordinal), oldest first
+    private static int queued;
+    private static int running;
+
+    private static final AtomicLong completedCount = new AtomicLong();
+    private static final AtomicLong cancelledCount = new AtomicLong();
+    private static final AtomicLong failedCount = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+    private static final AtomicLong workNanos = new AtomicLong();
+
+    static {
+        for(int i = 0; i < Priority.values().length; i++)
+            queues.add(new LinkedHashSet<>());
+
+        for(int i = 0; i < THREADS; i++) {
+            Thread worker = new Thread(ExtractionScheduler::workLoop, "extraction-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.NORM_PRIORITY - 1); // Don't fight the EDT
+            worker.start();
+        }
+    }
+
+    // Queues work for a file. kind says what the work produces (a row's cover, the scanner's tags...): if the same kind of
+    // work for that file is already queued or being read, this just waits on that instead (bumping its priority if need be).
+    // Different kinds for the same file each run their own. onDone gets the result on the EDT, null included
+    @SuppressWarnings("unchecked")
+    public static <T> Request submit(String kind, String path, Priority priority, Callable<T> work, Consumer<T> onDone) {
+        synchronized(lock) {
+            String key = kind + ":" + path;
+            Task task = tasks.get(key);
+            boolean isNew = task == null;
+            if(isNew) {
+                task = new Task(key, work);
+                tasks.put(key, task);
+            }
+
+            Request request = new Request(task, priority, (Consumer<Object>) onDone);
+            task.requests.add(request);
+
+            if(isNew)
+                enqueue(task);
+            else
+                task.requeue();
+
+            return request;
+        }
+    }
+
+    private static void workLoop() {
+        while(true) {
+            Task task;
+            try {
+                task = take();
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            long waited = start - task.queuedAt;
+            waitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+            Object result = null;
+            try {
+                result = task.work.call();
+                completedCount.incrementAndGet();
+            } catch(Exception e) {
+                failedCount.incrementAndGet();
+                e.printStackTrace();
+            }
+            workNanos.addAndGet(System.nanoTime() - start);
+
+            List<Request> waiting;
+            synchronized(lock) {
+                running--;
+                tasks.remove(task.key);
+                waiting = new ArrayList<>(task.requests);
+            }
+
+            Object done = result;
+            SwingUtilities.invokeLater(() -> {
+                for(Request request : waiting) {
+                    if(request.cancelled)
+                        continue; // Cancelled after it got picked up
+                    try {
+                        request.onDone.accept(done);
+                    } catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    private static Task take() throws InterruptedException {
+        synchronized(lock) {
+            while(queued == 0)
+                lock.wait();
+
+            for(LinkedHashSet<Task> queue : queues) {
+                Iterator<Task> oldest = queue.iterator();
+                if(oldest.hasNext()) {
+                    Task task = oldest.next();
+                    oldest.remove();
+                    queued--;
+                    running++;
+                    task.started = true;
+                    return task;
+                }
+            }
+            throw new IllegalStateException("Queue count out of sync");
+        }
+    }
+
+    // These two have to be called while holding the lock
+    private static void enqueue(Task task) {
+        task.queuedAs = task.priority();
+        queues.get(task.queuedAs.ordinal()).add(task);
+        queued++;
+        lock.notify();
+    }
+
+    private static void unqueue(Task task) {
+        if(task.queuedAs != null && queues.get(task.queuedAs.ordinal()).remove(task))
+            queued--;
+    }
+
+//#region Metrics
+    public static int getQueueDepth() {
+        synchronized(lock) {
+            return queued;
+        }
+    }
+
+    public static int getRunningCount() {
+        synchronized(lock) {
+            return running;
+        }
+    }
+
+    public static long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public static long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public static long getFailedCount() {
+        return failedCount.get();
+    }
+
+    // How long tasks sat in the queue before a thread picked them up
+    public static double getAverageWaitMillis() {
+        long started = completedCount.get() + failedCount.get();
+        return started == 0 ? 0 : waitNanos.get() / 1_000_000.0 / started;
+    }
+
+    public static double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    // How long the reads themselves took
+    public static double getAverageExtractionMillis() {
+        long started = completedCount.get() + failedCount.get();
+        return started == 0 ? 0 : workNanos.get() / 1_000_000.0 / started;
+    }
+
+    public static String describeMetrics() {
+        return String.format("queued %d, running %d/%d, done %d, failed %d, cancelled %d, wait %.1f ms avg (%.1f max), extraction %.1f ms avg",
+            getQueueDepth(), getRunningCount(), THREADS, getCompletedCount(), getFailedCount(), getCancelledCount(),
+            getAverageWaitMillis(), getMaxWaitMillis(), getAverageExtractionMillis());
+    }
+//#endregion Metrics
+}
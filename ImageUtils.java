@@ -1,17 +1,22 @@
 // import java.awt.Color;
-// import java.awt.Graphics2D;
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-// import java.awt.RenderingHints;
+import java.awt.RenderingHints;
 // import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Blob;
 import java.sql.SQLException;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.sql.rowset.serial.SerialBlob;
 import javax.sql.rowset.serial.SerialException;
 import javax.swing.Icon;
@@ -72,6 +77,47 @@ public class ImageUtils {
         return bytesToImage(blob.getBytes(1, (int) blob.length()));
     }
 
+    // Decodes an image straight down to roughly size x size. The decoder skips pixels while reading (subsampling),
+    // so a huge photo never gets fully decoded into memory just to end up as a thumbnail
+    public static BufferedImage decodeScaled(InputStream input, int size) throws Exception
+    {
+        try(ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if(!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+
+                int smallestSide = Math.min(reader.getWidth(0), reader.getHeight(0));
+                int step = Math.max(1, smallestSide / size);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+
+                return scaleImage(reader.read(0, param), size, size);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public static BufferedImage scaleImage(BufferedImage image, int width, int height)
+    {
+        if(image.getWidth() == width && image.getHeight() == height)
+            return image;
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = scaled.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2.drawImage(image, 0, 0, width, height, null);
+        g2.dispose();
+
+        return scaled;
+    }
+
     public static Icon resizeImageIcon(Icon icon) {
         // TODO Auto-generated method stub
         throw new UnsupportedOperationException("Unimplemented method 'resizeImageIcon'");
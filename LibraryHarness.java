@@ -0,0 +1,77 @@
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import models.ProbeResult;
+
+// Dev only, times the file/library reading code on real files from the command line (no db, no window):
+//   LibraryHarness probe <file> [more files...]
+//     Compares the old way of reading a file (json + duration + cover, three processes), probe + cover only when there is
+//     one, and the native reader (ffprobe only for formats it doesn't know)
+//   LibraryHarness durations <file> [more files...]
+//     Prints what DurationReader makes of each file, and how long that took
+//   LibraryHarness walk <folder> [more folders...]
+//     Just LibraryScanner's folder walk, no db, to see how long a folder takes
+public class LibraryHarness {
+    public static void main(String[] args) throws Exception
+    {
+        String[] paths = Arrays.copyOfRange(args, 1, args.length);
+        if(args[0].equals("probe"))
+            probeTest(paths);
+        else if(args[0].equals("durations"))
+            durationTest(paths);
+        else if(args[0].equals("walk"))
+            walkTest(paths);
+    }
+
+    private static void probeTest(String[] files) throws Exception
+    {
+        long count = MediaFileHandler.getProcessCount();
+        long millis = MediaFileHandler.getProcessMillis();
+        for(String path : files)
+        {
+            MediaFileHandler.getMetadataJson(path);
+            MediaFileHandler.getDuration(path);
+            MediaFileHandler.extractCoverArt(path);
+        }
+        System.out.printf("Before: %.2f processes, %.1f ms per file%n",
+            (MediaFileHandler.getProcessCount() - count) / (double)files.length, (MediaFileHandler.getProcessMillis() - millis) / (double)files.length);
+
+        count = MediaFileHandler.getProcessCount();
+        millis = MediaFileHandler.getProcessMillis();
+        for(String path : files)
+        {
+            ProbeResult probe = MediaFileHandler.probe(path);
+            if(probe.hasAttachedPicture)
+                MediaFileHandler.extractCoverArt(path);
+        }
+        System.out.printf("ffprobe: %.2f processes, %.1f ms per file%n",
+            (MediaFileHandler.getProcessCount() - count) / (double)files.length, (MediaFileHandler.getProcessMillis() - millis) / (double)files.length);
+
+        count = MediaFileHandler.getProcessCount();
+        long start = System.nanoTime();
+        for(String path : files)
+            MediaFileHandler.readMetadata(path);
+        System.out.printf("Native: %.2f processes, %.3f ms per file%n",
+            (MediaFileHandler.getProcessCount() - count) / (double)files.length, (System.nanoTime() - start) / 1_000_000.0 / files.length);
+    }
+
+    private static void durationTest(String[] files)
+    {
+        for(String path : files)
+        {
+            long start = System.nanoTime();
+            long durationMs = DurationReader.readDurationMs(path);
+            System.out.printf("%s: %d ms (read in %d us)%n", path, durationMs, (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    private static void walkTest(String[] roots)
+    {
+        for(String root : roots)
+        {
+            long start = System.nanoTime();
+            int count = LibraryScanner.pool.invoke(new LibraryScanner.FolderWalk(Paths.get(root))).size();
+            System.out.printf("%s: %d media files in %d ms%n", root, count, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import models.Media;
+import models.Playlist;
+
+// The whole library (media + playlist summaries) kept in memory, so views don't have to go back to the db every time they're shown.
+// It gets loaded once, then Database hands it every write it makes after that write succeeds. Every write bumps the version
+// and sends a Change to the listeners (on the EDT), so views can patch just the rows that changed instead of rebuilding.
+public class LibraryRepository {
+    public enum Kind {
+        MEDIA,              // Songs added/updated/removed from the library
+        PLAYLISTS,          // Playlists created/renamed/deleted
+        PLAYLIST_CONTENTS   // Songs added (to the end), moved or removed in one playlist
+    }
+
+    public static class Change {
+        public final long version;
+        public final Kind kind;
+        public final int playlistId; // Only for PLAYLIST_CONTENTS
+        public final int[] added;
+        public final int[] updated; // For PLAYLIST_CONTENTS this means moved
+        public final int[] removed;
+        public final Map<Integer, Media> media; // The new versions of anything added/updated, for MEDIA changes
+        public final Map<Integer, Playlist> playlists; // Same, for PLAYLISTS changes
+
+        Change(long version, Kind kind, int playlistId, int[] added, int[] updated, int[] removed, Map<Integer, Media> media, Map<Integer, Playlist> playlists) {
+            this.version = version;
+            this.kind = kind;
+            this.playlistId = playlistId;
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+            this.media = media;
+            this.playlists = playlists;
+        }
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private static final Object lock = new Object();
+    private static boolean loaded;
+    private static long version;
+    private static final Map<Integer, Media> media = new HashMap<>();
+    private static final Map<Integer, Playlist> playlists = new LinkedHashMap<>();
+    private static final Map<Database.MediaSort, List<Media>> sorted = new EnumMap<>(Database.MediaSort.class); // Built the first time a sort is paged
+
+    private static final List<Consumer<Change>> listeners = new CopyOnWriteArrayList<>();
+
+    // Blocks on the db, so call it off the EDT. Does nothing after the first time
+    public static void load() throws Exception {
+        while(true) {
+            long startVersion;
+            synchronized(lock) {
+                if(loaded)
+                    return;
+                startVersion = version;
+            }
+
+            List<Media> allMedia = Database.getAllMedia();
+            List<Playlist> allPlaylists = Database.getAllPlaylists();
+
+            synchronized(lock) {
+                if(version != startVersion)
+                    continue; // Something got written while we were reading, read it all again so it isn't missed
+
+                for(Media item : allMedia)
+                    media.put(item.id, item);
+                for(Playlist playlist : allPlaylists)
+                    playlists.put(playlist.id, playlist);
+
+                loaded = true;
+                return;
+            }
+        }
+    }
+
+    public static boolean isLoaded() {
+        synchronized(lock) {
+            return loaded;
+        }
+    }
+
+    public static long getVersion() {
+        synchronized(lock) {
+            return version;
+        }
+    }
+
+    public static Media getMedia(int id) {
+        synchronized(lock) {
+            return media.get(id);
+        }
+    }
+
+    public static List<Playlist> getAllPlaylists() {
+        synchronized(lock) {
+            return new ArrayList<>(playlists.values());
+        }
+    }
+
+    public static Playlist getPlaylist(int id) {
+        synchronized(lock) {
+            return playlists.get(id);
+        }
+    }
+
+    // Same thing as Database.getMediaPage, just out of memory. Only works once loaded
+    public static List<Media> getMediaPage(Database.MediaSort sortKey, Media after, int limit) {
+        synchronized(lock) {
+            if(!loaded)
+                throw new IllegalStateException("Library hasn't been loaded yet");
+
+            List<Media> order = sortedBy(sortKey);
+            int start = 0;
+            if(after != null) {
+                int found = Collections.binarySearch(order, after, sortKey.comparator());
+                start = found >= 0 ? found + 1 : -found - 1;
+            }
+
+            return new ArrayList<>(order.subList(start, Math.min(order.size(), start + limit)));
+        }
+    }
+
+    private static List<Media> sortedBy(Database.MediaSort sortKey) {
+        List<Media> order = sorted.get(sortKey);
+        if(order == null) {
+            order = new ArrayList<>(media.values());
+            order.sort(sortKey.comparator());
+            sorted.put(sortKey, order);
+        }
+        return order;
+    }
+
+    public static void addListener(Consumer<Change> listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Consumer<Change> listener) {
+        listeners.remove(listener);
+    }
+
+//#region Database Hooks
+    // Database calls these after its writes go through. They only keep the maps up to date once loaded,
+    // but the version and the listeners get told either way
+    static void mediaAdded(List<Media> added) {
+        Map<Integer, Media> changed = new LinkedHashMap<>();
+        int[] ids = new int[added.size()];
+
+        synchronized(lock) {
+            for(int i = 0; i < added.size(); i++) {
+                Media item = added.get(i);
+                ids[i] = item.id;
+                changed.put(item.id, item);
+
+                if(loaded) {
+                    media.put(item.id, item);
+                    for(Map.Entry<Database.MediaSort, List<Media>> order : sorted.entrySet())
+                        insertSorted(order.getValue(), item, order.getKey());
+                }
+            }
+
+            publish(Kind.MEDIA, 0, ids, NONE, NONE, changed, null);
+        }
+    }
+
+    // Only name, author and album can be edited, everything else is kept from what we already had
+    static void mediaUpdated(int id, Media data) {
+        synchronized(lock) {
+            Media old = media.get(id);
+            Media updated = old == null
+                ? new Media(id, data.path, data.name, data.format, data.author, data.album, data.addedAt)
+                : new Media(id, old.path, data.name, old.format, data.author, data.album, old.addedAt);
+            updated.copyTechnicalMetadata(old == null ? data : old);
+
+            Map<Integer, Media> changed = new LinkedHashMap<>();
+            replaceMedia(old, updated, changed);
+            publishUpdated(changed);
+        }
+    }
+
+    // New technical metadata (duration, codec, fingerprint...), the rest stays how it was
+    static void mediaProbed(Media data) {
+        mediaProbed(List.of(data));
+    }
+
+    static void mediaProbed(List<Media> probed) {
+        synchronized(lock) {
+            Map<Integer, Media> changed = new LinkedHashMap<>();
+            for(Media data : probed) {
+                Media old = media.get(data.id);
+                Media updated = old == null
+                    ? data
+                    : new Media(old.id, old.path, old.name, old.format, old.author, old.album, old.addedAt);
+                updated.copyTechnicalMetadata(data);
+                if(old != null)
+                    updated.readPending = old.readPending; // A probe doesn't read tags, only mediaRead finishes off a pending row
+
+                replaceMedia(old, updated, changed);
+            }
+            publishUpdated(changed);
+        }
+    }
+
+    // Tags and technical metadata read for the first time (LibraryScanner), everything but path/format/added_at can change
+    static void mediaRead(List<Media> read) {
+        synchronized(lock) {
+            Map<Integer, Media> changed = new LinkedHashMap<>();
+            for(Media data : read) {
+                Media old = media.get(data.id);
+                Media updated = old == null
+                    ? data
+                    : new Media(old.id, old.path, data.name, old.format, data.author, data.album, old.addedAt);
+                updated.copyTechnicalMetadata(data);
+
+                replaceMedia(old, updated, changed);
+            }
+            publishUpdated(changed);
+        }
+    }
+
+    // Files that moved on disk, by id. Only the path changes, so playlists etc. don't notice
+    static void mediaMoved(Map<Integer, String> newPaths) {
+        synchronized(lock) {
+            Map<Integer, Media> changed = new LinkedHashMap<>();
+            for(Map.Entry<Integer, String> moved : newPaths.entrySet()) {
+                Media old = media.get(moved.getKey());
+                if(old == null)
+                    continue; // Not loaded yet, views will read the new path from the db
+
+                Media updated = new Media(old.id, moved.getValue(), old.name, old.format, old.author, old.album, old.addedAt);
+                updated.copyTechnicalMetadata(old);
+                replaceMedia(old, updated, changed);
+            }
+            publishUpdated(changed);
+        }
+    }
+
+    // Has to be called while holding the lock. Adds it to changed so the caller can send them all out as one Change
+    private static void replaceMedia(Media old, Media updated, Map<Integer, Media> changed) {
+        if(loaded) {
+            media.put(updated.id, updated);
+            for(Map.Entry<Database.MediaSort, List<Media>> order : sorted.entrySet()) {
+                if(old != null)
+                    removeSorted(order.getValue(), old, order.getKey());
+                insertSorted(order.getValue(), updated, order.getKey());
+            }
+        }
+
+        changed.put(updated.id, updated);
+    }
+
+    // Has to be called while holding the lock
+    private static void publishUpdated(Map<Integer, Media> changed) {
+        if(changed.isEmpty())
+            return;
+
+        int[] ids = changed.keySet().stream().mapToInt(Integer::intValue).toArray();
+        publish(Kind.MEDIA, 0, NONE, ids, NONE, changed, null);
+    }
+
+    static void mediaRemoved(int... ids) {
+        synchronized(lock) {
+            for(int id : ids) {
+                Media old = media.remove(id);
+                if(old != null) {
+                    for(Map.Entry<Database.MediaSort, List<Media>> order : sorted.entrySet())
+                        removeSorted(order.getValue(), old, order.getKey());
+                }
+            }
+
+            publish(Kind.MEDIA, 0, NONE, NONE, ids, null, null);
+        }
+    }
+
+    static void playlistAdded(Playlist playlist) {
+        playlistChanged(playlist, true);
+    }
+
+    static void playlistUpdated(Playlist playlist) {
+        playlistChanged(playlist, false);
+    }
+
+    private static void playlistChanged(Playlist playlist, boolean isNew) {
+        synchronized(lock) {
+            Playlist summary = new Playlist(playlist.id, playlist.name); // Never hold onto the image itself
+            summary.hasImage = playlist.hasImage;
+
+            if(loaded)
+                playlists.put(summary.id, summary);
+
+            Map<Integer, Playlist> changed = new LinkedHashMap<>();
+            changed.put(summary.id, summary);
+            int[] ids = { summary.id };
+            publish(Kind.PLAYLISTS, 0, isNew ? ids : NONE, isNew ? NONE : ids, NONE, null, changed);
+        }
+    }
+
+    // Renames don't come with the thumbnail flag, so it's kept from what we had
+    static void playlistRenamed(int id, String name) {
+        Playlist renamed = new Playlist(id, name);
+        synchronized(lock) {
+            Playlist old = playlists.get(id);
+            renamed.hasImage = old != null && old.hasImage;
+        }
+        playlistUpdated(renamed);
+    }
+
+    static void playlistRemoved(int id) {
+        synchronized(lock) {
+            playlists.remove(id);
+            publish(Kind.PLAYLISTS, 0, NONE, NONE, new int[] { id }, null, null);
+        }
+    }
+
+    static void playlistContentsChanged(int playlist, int[] added, int[] moved, int[] removed) {
+        synchronized(lock) {
+            publish(Kind.PLAYLIST_CONTENTS, playlist, added, moved, removed, null, null);
+        }
+    }
+//#endregion Database Hooks
+
+    private static void insertSorted(List<Media> order, Media item, Database.MediaSort sortKey) {
+        int found = Collections.binarySearch(order, item, sortKey.comparator());
+        order.add(found >= 0 ? found : -found - 1, item);
+    }
+
+    private static void removeSorted(List<Media> order, Media item, Database.MediaSort sortKey) {
+        int found = Collections.binarySearch(order, item, sortKey.comparator());
+        if(found >= 0)
+            order.remove(found);
+    }
+
+    // Has to be called while holding the lock, so versions go out in the same order the changes were made
+    private static void publish(Kind kind, int playlistId, int[] added, int[] updated, int[] removed, Map<Integer, Media> changedMedia, Map<Integer, Playlist> changedPlaylists) {
+        Change change = new Change(++version, kind, playlistId, added, updated, removed,
+            changedMedia == null ? Map.of() : changedMedia,
+            changedPlaylists == null ? Map.of() : changedPlaylists);
+
+        if(listeners.isEmpty())
+            return;
+
+        SwingUtilities.invokeLater(() -> {
+            for(Consumer<Change> listener : listeners) {
+                try {
+                    listener.accept(change);
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+}
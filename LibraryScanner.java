@@ -0,0 +1,266 @@
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import models.Media;
+import models.ProbeResult;
+
+// Keeps the library in sync with the folders in library_root. Folders get walked in parallel (each subfolder is its own
+// fork/join task), and every media file found is checked against the size + mtime the db last saw it at. Unchanged files
+// are skipped without being opened, new ones go in through insertMediaBatch (marked read_pending, under their file name),
+// and the actual reading (tags, duration, cover) happens afterwards through ExtractionScheduler at background priority,
+// so anything on screen still goes first. What gets read is saved in batches of WRITE_BATCH, not a write per file
+public class LibraryScanner {
+    public static class ScanResult {
+        public int filesSeen;
+        public int added;
+        public int changed;
+        public int unchanged;
+        public int unread; // Found by an earlier scan that didn't get to read them
+        public long millis;
+
+        @Override
+        public String toString() {
+            return String.format("%d files in %d ms: %d new, %d changed, %d unchanged, %d still to read", filesSeen, millis, added, changed, unchanged, unread);
+        }
+    }
+
+    static class FoundFile {
+        final Path path;
+        final long size;
+        final long modified;
+
+        FoundFile(Path path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private static final Set<String> EXTENSIONS = Set.of(MediaAddingMenu.MEDIA_EXTENSIONS);
+    // Mostly waiting on the disk, so more threads than cores pays off
+    static final ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("midnight.scanThreads", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)));
+    static final Object scanLock = new Object(); // One scan (or LibraryWatcher batch) at a time, two would both see the same files as new
+
+    private static final int WRITE_BATCH = 500;
+    private static final long WRITE_DELAY_MS = 2000; // A partly full batch waits this long for more before it's saved anyway
+    private static final List<Media> readTagged = new ArrayList<>(); // Both guarded by writeLock
+    private static final List<Media> readProbed = new ArrayList<>();
+    private static final Object writeLock = new Object();
+    private static boolean writeScheduled;
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "scan-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Remembers the folder and scans it straight away. Blocks, so call it off the EDT
+    public static ScanResult addRoot(String path) throws Exception {
+        Database.addLibraryRoot(path);
+        LibraryWatcher.watch(path);
+        return scan(List.of(path));
+    }
+
+    public static ScanResult scanAll() throws Exception {
+        return scan(Database.getLibraryRoots());
+    }
+
+    public static ScanResult scan(List<String> roots) throws Exception {
+        synchronized(scanLock) {
+            long start = System.nanoTime();
+            ScanResult result = new ScanResult();
+            Map<String, Media> known = Database.getMediaByPathKey();
+
+            List<Media> added = new ArrayList<>();
+            List<Media> changed = new ArrayList<>();
+            List<Media> unread = new ArrayList<>();
+            Set<String> seen = new HashSet<>(); // Roots can overlap
+
+            for(String root : roots) {
+                Path folder = Paths.get(root);
+                if(!Files.isDirectory(folder))
+                    continue; // Unplugged drive or whatever, try again next time
+
+                long scannedAt = System.currentTimeMillis();
+                for(FoundFile file : pool.invoke(new FolderWalk(folder))) {
+                    String key = Database.normalizePath(file.path.toString());
+                    if(!seen.add(key))
+                        continue;
+
+                    result.filesSeen++;
+                    Media existing = known.get(key);
+                    if(existing == null) {
+                        Media media = newMedia(file.path);
+                        media.fileSize = file.size; // So the next scan knows it's seen this exact file, even if it quits before reading it
+                        media.fileModified = file.modified;
+                        media.readPending = true;
+                        added.add(media);
+                    }
+                    else if(existing.readPending)
+                        unread.add(existing);
+                    else if(existing.fileSize == file.size && existing.fileModified == file.modified)
+                        result.unchanged++;
+                    else
+                        changed.add(existing);
+                }
+                Database.markLibraryRootScanned(root, scannedAt);
+            }
+
+            Database.insertMediaBatch(added);
+
+            for(Media media : added)
+                queueReading(media);
+            for(Media media : unread)
+                queueReading(media);
+            for(Media media : changed)
+                queueReading(media);
+
+            result.added = added.size();
+            result.changed = changed.size();
+            result.unread = unread.size();
+            result.millis = (System.nanoTime() - start) / 1_000_000;
+            return result;
+        }
+    }
+
+    // Goes in under its file name until the tags have been read
+    static Media newMedia(Path file) {
+        String fileName = file.getFileName().toString();
+        String extension = MediaAddingMenu.getExtensionOf(fileName);
+        String name = fileName.substring(0, fileName.length() - extension.length() - 1);
+
+        return new Media(file.toString(), name, extension, "", "");
+    }
+
+    // Tags too if they've never been read (read_pending), otherwise just the technical metadata
+    private static void queueReading(Media media) {
+        boolean withTags = media.readPending;
+        ExtractionScheduler.submit("scan", media.path, ExtractionScheduler.Priority.BACKGROUND, () -> {
+            Media read = new Media(media.id, media.path, media.name, media.format, media.author, media.album, media.addedAt);
+            if(withTags)
+                applyTags(read);
+            if(!MediaFileHandler.readTechnicalMetadata(read))
+                return null; // Gone, the watcher/next scan takes care of it
+
+            read.readPending = false;
+            queueWrite(read, withTags);
+            return null;
+        }, done -> {});
+    }
+
+    private static void queueWrite(Media read, boolean withTags) {
+        synchronized(writeLock) {
+            (withTags ? readTagged : readProbed).add(read);
+            if(readTagged.size() + readProbed.size() >= WRITE_BATCH) {
+                writer.execute(LibraryScanner::writeRead);
+            } else if(!writeScheduled) {
+                writeScheduled = true;
+                writer.schedule(LibraryScanner::writeRead, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Runs on the writer thread, so batches go to the db one after the other
+    private static void writeRead() {
+        List<Media> tagged;
+        List<Media> probed;
+        synchronized(writeLock) {
+            writeScheduled = false;
+            if(readTagged.isEmpty() && readProbed.isEmpty())
+                return; // A full batch and the timer both went for the same one
+
+            tagged = new ArrayList<>(readTagged);
+            probed = new ArrayList<>(readProbed);
+            readTagged.clear();
+            readProbed.clear();
+        }
+
+        try {
+            Database.updateReadMediaBatch(tagged, probed);
+        } catch (Exception e) {
+            e.printStackTrace(); // Still read_pending/stale fingerprint in the db, so the next scan tries them again
+        }
+    }
+
+    // Title/artist/album from the file's tags, false if it doesn't have any. Only for files we just found,
+    // anything already in the library might have been renamed by hand
+    static boolean applyTags(Media media) {
+        try {
+            ProbeResult tags = MediaFileHandler.readMetadata(media.path);
+            String title = tags.getTag("title");
+            String artist = tags.getTag("artist");
+            String album = tags.getTag("album");
+            if(title == null && artist == null && album == null)
+                return false;
+
+            if(title != null)
+                media.name = title;
+            if(artist != null)
+                media.author = artist;
+            if(album != null)
+                media.album = album;
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace(); // Keeps the file name then
+            return false;
+        }
+    }
+
+    static boolean isMediaFile(Path file) {
+        return EXTENSIONS.contains(MediaAddingMenu.getExtensionOf(file.getFileName().toString()));
+    }
+
+    static class FolderWalk extends RecursiveTask<List<FoundFile>> {
+        private static final long serialVersionUID = 1L;
+        private final Path folder;
+
+        FolderWalk(Path folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        protected List<FoundFile> compute() {
+            List<FoundFile> files = new ArrayList<>();
+            List<FolderWalk> subfolders = new ArrayList<>();
+
+            try(DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for(Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        // Doesn't follow links, so a link back up the tree can't send us round in circles
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (Exception e) {
+                        continue; // Deleted while we were looking, or no permission
+                    }
+
+                    if(attributes.isDirectory())
+                        subfolders.add(new FolderWalk(entry));
+                    else if(attributes.isRegularFile() && isMediaFile(entry))
+                        files.add(new FoundFile(entry, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                return files;
+            }
+
+            invokeAll(subfolders);
+            for(FolderWalk subfolder : subfolders)
+                files.addAll(subfolder.join());
+
+            return files;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import models.Media;
+
+// Keeps the library in sync with the library folders while the app is open (LibraryScanner catches up on whatever happened
+// while it was closed). Events only mark paths as touched. Once things go quiet for QUIET_MS (or MAX_DELAY_MS has passed,
+// so a long copy still shows up bit by bit), every touched path gets looked at for what it actually is now, and the whole
+// batch goes to the db as a handful of transactions: moves, inserts, metadata updates, deletes.
+// A file that disappears and shows up somewhere else with the same size + mtime counts as moved, so it keeps its playlists
+public class LibraryWatcher {
+    private static final long QUIET_MS = 750;
+    private static final long MAX_DELAY_MS = 5000;
+
+    private static WatchService watcher;
+    private static final Map<WatchKey, Path> folders = new HashMap<>();
+    private static final Map<Path, WatchKey> watchedFolders = new HashMap<>(); // Keys stay in here after the folder's gone, until its deletion gets handled
+    private static final Set<Path> touched = new LinkedHashSet<>(); // Only used on the watcher thread
+
+    // Starts watching every folder in library_root. Blocks while it registers them, so call it off the EDT
+    public static void start() throws Exception {
+        synchronized(folders) {
+            if(watcher != null)
+                return;
+            watcher = FileSystems.getDefault().newWatchService();
+        }
+
+        for(String root : Database.getLibraryRoots())
+            watch(root);
+
+        Thread thread = new Thread(LibraryWatcher::watchLoop, "library-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // New library folder (LibraryScanner.addRoot). Does nothing before start
+    public static void watch(String root) {
+        Path folder = Paths.get(root);
+        if(Files.isDirectory(folder))
+            registerTree(folder);
+    }
+
+    // WatchService only reports a folder's direct children, so every subfolder needs its own registration
+    private static void registerTree(Path folder) {
+        synchronized(folders) {
+            WatchKey existing = watchedFolders.get(folder);
+            if(watcher == null || (existing != null && existing.isValid()))
+                return;
+
+            try {
+                WatchKey key = folder.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+                folders.put(key, folder);
+                watchedFolders.put(folder, key);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        try(var entries = Files.newDirectoryStream(folder, Files::isDirectory)) {
+            for(Path subfolder : entries) {
+                if(!Files.isSymbolicLink(subfolder))
+                    registerTree(subfolder);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void watchLoop() {
+        long firstTouch = 0;
+
+        while(true) {
+            WatchKey key;
+            try {
+                if(touched.isEmpty()) {
+                    key = watcher.take();
+                } else {
+                    long now = System.currentTimeMillis();
+                    long wait = Math.min(QUIET_MS, firstTouch + MAX_DELAY_MS - now);
+                    key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if(key == null) {
+                // Quiet for long enough (or been waiting too long), deal with everything so far
+                try {
+                    applyChanges(new ArrayList<>(touched));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                touched.clear();
+                continue;
+            }
+
+            Path folder;
+            synchronized(folders) {
+                folder = folders.get(key);
+            }
+
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(touched.isEmpty())
+                    firstTouch = System.currentTimeMillis();
+
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Too much happened to keep track of, so look at the whole folder again (every library folder if we
+                    // can't tell which one it was)
+                    if(folder != null)
+                        touched.add(folder);
+                    else
+                        touchRoots();
+                    continue;
+                }
+                if(folder == null)
+                    continue;
+
+                Path path = folder.resolve((Path) event.context());
+                touched.add(path);
+                if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+                    registerTree(path); // Straight away, so we hear about what gets copied into it (the walk at the end catches anything before this)
+            }
+
+            if(!key.reset()) {
+                synchronized(folders) {
+                    folders.remove(key); // Folder's gone, the event on its parent takes care of what was in it
+                }
+            }
+        }
+    }
+
+    private static void touchRoots() {
+        try {
+            for(String root : Database.getLibraryRoots())
+                touched.add(Paths.get(root));
+        } catch (Exception e) {
+            e.printStackTrace(); // The next start's scan still catches up on it
+        }
+    }
+
+    // Works from what each path is now rather than the events, so create + delete, delete + create, a dozen modifies etc.
+    // all come out right without having to replay them in order
+    static void applyChanges(List<Path> paths) throws Exception {
+        synchronized(LibraryScanner.scanLock) {
+            Map<String, LibraryScanner.FoundFile> present = new LinkedHashMap<>();
+            Map<Integer, Media> missing = new LinkedHashMap<>();
+
+            for(Path path : paths) {
+                BasicFileAttributes attributes = null;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (Exception e) {
+                    // Gone
+                }
+
+                if(attributes != null && attributes.isDirectory()) {
+                    registerTree(path); // New folder (or one we already had and overflowed on), take everything in it
+                    for(LibraryScanner.FoundFile file : LibraryScanner.pool.invoke(new LibraryScanner.FolderWalk(path)))
+                        present.put(Database.normalizePath(file.path.toString()), file);
+                    for(Media media : Database.getMediaInFolder(path.toString())) {
+                        if(!Files.exists(Paths.get(media.path)))
+                            missing.put(media.id, media);
+                    }
+                } else if(attributes != null && attributes.isRegularFile()) {
+                    if(LibraryScanner.isMediaFile(path))
+                        present.put(Database.normalizePath(path.toString()), new LibraryScanner.FoundFile(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } else if(attributes == null) {
+                    if(LibraryScanner.isMediaFile(path)) {
+                        Media media = Database.findMediaByPath(path.toString());
+                        if(media != null)
+                            missing.put(media.id, media);
+                    } else if(wasWatched(path)) {
+                        for(Media media : Database.getMediaInFolder(path.toString())) // A whole folder went
+                            missing.put(media.id, media);
+                    }
+                }
+            }
+
+            List<Media> added = new ArrayList<>();
+            List<Media> changed = new ArrayList<>();
+            for(LibraryScanner.FoundFile file : present.values()) {
+                Media existing = Database.findMediaByPath(file.path.toString());
+                if(existing == null) {
+                    Media media = LibraryScanner.newMedia(file.path);
+                    media.fileSize = file.size;
+                    media.fileModified = file.modified;
+                    added.add(media);
+                } else if(existing.fileSize != file.size || existing.fileModified != file.modified) {
+                    changed.add(existing);
+                }
+            }
+
+            Map<Integer, String> moved = matchMoves(missing, added);
+
+            // Read everything before writing anything, so each kind of change is one write
+            LibraryScanner.pool.submit(() -> added.parallelStream().forEach(media -> {
+                LibraryScanner.applyTags(media);
+                MediaFileHandler.readTechnicalMetadata(media);
+            })).get();
+            LibraryScanner.pool.submit(() -> changed.parallelStream().forEach(MediaFileHandler::readTechnicalMetadata)).get();
+
+            Database.moveMediaBatch(moved);
+            Database.insertMediaBatch(added);
+            Database.updateTechnicalMetadataBatch(changed);
+            Database.deleteMediaBatch(missing.keySet());
+        }
+    }
+
+    // A missing file + a new one with the same size, mtime and extension is the same file, moved/renamed.
+    // Takes the pair out of missing and added, and returns id -> new path
+    private static Map<Integer, String> matchMoves(Map<Integer, Media> missing, List<Media> added) {
+        Map<String, Media> byFingerprint = new HashMap<>();
+        for(Media media : missing.values()) {
+            if(media.hasTechnicalMetadata())
+                byFingerprint.put(media.fileSize + ":" + media.fileModified + ":" + media.format, media);
+        }
+
+        Map<Integer, String> moved = new LinkedHashMap<>();
+        if(byFingerprint.isEmpty())
+            return moved;
+
+        added.removeIf(media -> {
+            Media old = byFingerprint.remove(media.fileSize + ":" + media.fileModified + ":" + media.format);
+            if(old == null)
+                return false;
+
+            moved.put(old.id, media.path);
+            missing.remove(old.id);
+            return true;
+        });
+
+        return moved;
+    }
+
+    // True if path was one of our folders. Forgets it and everything under it
+    private static boolean wasWatched(Path path) {
+        synchronized(folders) {
+            return watchedFolders.keySet().removeIf(folder -> folder.startsWith(path));
+        }
+    }
+}
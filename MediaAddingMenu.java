@@ -3,6 +3,7 @@ import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.JButton;
 import javax.swing.JDialog;
@@ -13,11 +14,8 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
-// import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
 import models.Media;
+import models.ProbeResult;
 
 public class MediaAddingMenu {
     public static JDialog mediaAddingDialog;
@@ -40,24 +38,18 @@ public class MediaAddingMenu {
         heldIndex = index;
         mediaAddingDialog.setTitle("Edit Media");
 
-        try {
-            Media originalData = Database.findMediaById(index);
-
+        AsyncDatabase.onEdt(AsyncDatabase.findMediaById(index), originalData -> {
             pathField.setText(originalData.path);
             nameField.setText(originalData.name);
             extField.setText(originalData.format);
             albumField.setText(originalData.album);
             authorField.setText(originalData.author);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        });
 
         return mediaAddingDialog;
     }
 
     public static JDialog OpenMediaAddingMenu(JFrame parent) {
-        try {Database.initialize();} catch (Exception e) {e.printStackTrace();}
-
         pathField.setText("");
         nameField.setText("");
         extField.setText("");
@@ -139,30 +131,35 @@ public class MediaAddingMenu {
         
 
         // result = info;
-        try {
-            if(heldIndex == -1)
-                Database.insertMedia(info);
-            else
-                Database.updateMedia(info, heldIndex);
-            
-            SongsMenu.instance.Refresh();
-        } catch (Exception e) {
-            e.printStackTrace();
+        CompletableFuture<?> saving;
+        if(heldIndex == -1)
+        {
+            // Read the file's duration etc. once here, so the list never has to
+            saving = AsyncDatabase.submit(() -> {
+                MediaFileHandler.readTechnicalMetadata(info);
+                return Database.insertMedia(info);
+            });
         }
+        else
+            saving = AsyncDatabase.updateMedia(info, heldIndex);
+
+        AsyncDatabase.onEdt(saving, saved -> {}); // Open views pick the change up from LibraryRepository
 
         mediaAddingDialog.dispose();
     }
 
+    // Everything we let people add, LibraryScanner goes by this too
+    static final String[] MEDIA_EXTENSIONS = {
+        // Audio
+        "mp3", "wav", "flac", "ogg", "aac", "m4a",
+        // Video
+        "mp4", "mkv", "avi", "mov", "webm"
+    };
+
     public static File openFileSelector()
     {
         JFileChooser chooser = new JFileChooser();
-        FileNameExtensionFilter filter = new FileNameExtensionFilter(
-            "Audio & Video Files",
-            // Audio
-            "mp3", "wav", "flac", "ogg", "aac", "m4a",
-            // Video
-            "mp4", "mkv", "avi", "mov", "webm"
-        );
+        FileNameExtensionFilter filter = new FileNameExtensionFilter("Audio & Video Files", MEDIA_EXTENSIONS);
         
         chooser.setFileFilter(filter);
         int returnVal = chooser.showOpenDialog(mediaAddingDialog);
@@ -199,30 +196,21 @@ public class MediaAddingMenu {
     public static void getMediaDetails(String path)
     {
         try {
-            String json = MediaFileHandler.getMetadataJson(path);
-            fillFields(json);
+            fillFields(MediaFileHandler.readMetadata(path));
         } catch (Exception e) {
 
         }
     }
 
     
-    public static void fillFields(String json) {
-        JsonObject root = JsonParser.parseString(json).getAsJsonObject();
-
-        JsonObject format = root.getAsJsonObject("format");
-        if (format == null) return;
-
-        JsonObject tags = format.getAsJsonObject("tags");
-        if (tags == null) return;
-
-        if (tags.has("artist")) {
-            String artist = tags.get("artist").getAsString();
+    public static void fillFields(ProbeResult probe) {
+        String artist = probe.getTag("artist");
+        if (artist != null) {
             authorField.setText(artist);
         }
 
-        if (tags.has("album")) {
-            String album = tags.get("album").getAsString();
+        String album = probe.getTag("album");
+        if (album != null) {
             albumField.setText(album);
         }
     }
@@ -18,6 +18,7 @@ import javax.swing.JPanel;
 import javax.swing.JSlider;
 // import javax.swing.border.EmptyBorder;
 import javax.swing.border.MatteBorder;
+import javax.swing.event.ChangeListener;
 import javax.swing.plaf.basic.BasicSliderUI;
 
 public class MediaControlBar extends JPanel{
@@ -27,9 +28,13 @@ public class MediaControlBar extends JPanel{
     JButton repeatButton;
     JButton shuffleButton;
 
-    static JSlider musicProgress;
+    static JSlider musicProgress; // In milliseconds
     static JLabel currentSecond;
     static JLabel songEndLength;
+    private static int shownSecond = -1; // What currentSecond says, so it only gets a new string when that changes
+
+    static long thumbMoves; // For PlaybackProgress's metrics
+    static long labelChanges;
     
     // ========== HELPER METHOD: CREATE MODERN BUTTON ==========
     // Creates a custom styled button with rounded corners and hover effects
@@ -46,13 +51,14 @@ public class MediaControlBar extends JPanel{
                 int height = getHeight();
                 
                 // Determine button color based on state
+                Color stateColor = getModel().isSelected() ? ColorScheme.PRIMARY_COLOR : baseColor;  // Shuffle/repeat while they're on
                 Color buttonColor;
                 if (getModel().isPressed()) {
-                    buttonColor = baseColor.darker();  // Darker when pressed
+                    buttonColor = stateColor.darker();  // Darker when pressed
                 } else if (getModel().isRollover()) {
-                    buttonColor = baseColor.brighter();  // Brighter on hover
+                    buttonColor = stateColor.brighter();  // Brighter on hover
                 } else {
-                    buttonColor = baseColor;  // Normal state
+                    buttonColor = stateColor;  // Normal state
                 }
                 
                 // Draw rounded rectangle background
@@ -123,7 +129,7 @@ public class MediaControlBar extends JPanel{
         songEndLength = new JLabel("2:00");
         songEndLength.setForeground(ColorScheme.TEXT_COLOR);
 
-        musicProgress = new JSlider(0, 120); //Apparently you wanna start it from 0 to the amount of secs in a song, but I'll have to figure out how to do that later
+        musicProgress = new JSlider(0, 120_000); // setNewSong sets it to the song's length
         musicProgress.setPaintTicks(false); //Makes it smooth
         musicProgress.setPaintLabels(false); //Makes the line/dot thing follow your mouse better (think the setPaintTicks(false) also helped with this tho)
         musicProgress.setPaintTrack(true); //Basically what it says
@@ -141,8 +147,7 @@ public class MediaControlBar extends JPanel{
             // if(musicProgress.getValueIsAdjusting())
             //     System.out.println(musicProgress.getValue()); //Yeah, this works
 
-            musicProgress.repaint();
-            setProgressCounter();
+            setProgressCounter(); // MusicSlider repaints what moved
         });
 
         musicProgress.addMouseListener(new java.awt.event.MouseAdapter() {
@@ -151,8 +156,8 @@ public class MediaControlBar extends JPanel{
                 int mouseXpos = e.getX();
                 int width = musicProgress.getWidth();
 
-                moveProgress(mouseXpos * musicProgress.getMaximum() / width); // use the value to then set the music point (musicProgress.getValue())
-                MusicPlayer.setProgress((long)musicProgress.getValue() * 1000);
+                showProgress((long)mouseXpos * musicProgress.getMaximum() / width); // use the value to then set the music point (musicProgress.getValue())
+                MusicPlayer.setProgress(musicProgress.getValue());
                 // musicProgress.setValue(mouseXpos * musicProgress.getMaximum() / width); // use the value to then set the music point (musicProgress.getValue())
 
                 //Some code to say this is being held down (so we can pause the music when you do so)
@@ -172,37 +177,62 @@ public class MediaControlBar extends JPanel{
         add(upperSection, BorderLayout.NORTH);
 
         playButton.addActionListener(e -> MusicPlayer.togglePaused());
+        nextButton.addActionListener(e -> MusicPlayer.playNext());
+        prevButton.addActionListener(e -> MusicPlayer.playPrevious());
+        shuffleButton.addActionListener(e -> {
+            MusicPlayer.toggleShuffling();
+            shuffleButton.setSelected(!shuffleButton.isSelected()); // Commands run in order, so this always matches
+        });
+        repeatButton.addActionListener(e -> {
+            MusicPlayer.toggleRepeating();
+            repeatButton.setSelected(!repeatButton.isSelected());
+        });
     }
 
-    public static void moveProgress(int newSpot) //Use every second when playing music to move the bar
+    // PlaybackProgress calls this at most once a frame
+    public static void showProgress(long ms)
     {
-        musicProgress.setValue(newSpot);
-
-        setProgressCounter();
+        if(!musicProgress.getValueIsAdjusting()) // Being dragged, leave it where the mouse is
+            musicProgress.setValue((int)ms);
     }
 
-    public static void setNewSong(int songLength)
+    public static void setNewSong(long lengthMs)
     {
-        moveProgress(0);
-        musicProgress.setMaximum(songLength);
+        shownSecond = -1;
+        musicProgress.setValue(0);
+        setSongLength(lengthMs);
+        musicProgress.repaint();
+    }
 
-        int seconds = songLength % 60;
-        var secondText = "";
+    // Without moving back to the start, vlc works out the real length after it's started playing
+    public static void setSongLength(long lengthMs)
+    {
+        musicProgress.setMaximum((int)lengthMs);
+        songEndLength.setText(formatTime((int)(lengthMs / 1000)));
+    }
 
-        if(seconds < 10)
-            secondText = "0" + String.valueOf(seconds);
-        else
-            secondText = String.valueOf(seconds);
-        
-        var minutes = (songLength - seconds) / 60;
-        songEndLength.setText(String.valueOf(minutes) + ":" + secondText);
+    // How long the thumb takes to move one pixel at normal speed, 0 before it's been laid out
+    static double millisPerPixel()
+    {
+        int width = ((MusicSlider)musicProgress.getUI()).getTrackWidth();
+        return width > 0 ? (double)musicProgress.getMaximum() / width : 0;
     }
 
+    // Only changes the text (and makes a new string for it) when it's onto a different second
     public static void setProgressCounter()
     {
-        int newSpot = musicProgress.getValue();
+        int newSpot = musicProgress.getValue() / 1000;
+        if(newSpot == shownSecond)
+            return;
 
-        int seconds = newSpot % 60;
+        shownSecond = newSpot;
+        currentSecond.setText(formatTime(newSpot));
+        labelChanges++;
+    }
+
+    private static String formatTime(int totalSeconds)
+    {
+        int seconds = totalSeconds % 60;
         var secondText = "";
 
         if(seconds < 10)
@@ -210,12 +240,35 @@ public class MediaControlBar extends JPanel{
         else
             secondText = String.valueOf(seconds);
         
-        var minutes = (newSpot - seconds) / 60;
-        currentSecond.setText(String.valueOf(minutes) + ":" + secondText);
+        var minutes = (totalSeconds - seconds) / 60;
+        return String.valueOf(minutes) + ":" + secondText;
     }
 
     public class MusicSlider extends BasicSliderUI
     {
+        // The default one repaints the whole slider on every change. Only the strip between where the thumb was and
+        // where it is now looks any different (thumbRect's as tall as the track), and most changes don't move it a whole pixel
+        @Override
+        protected ChangeListener createChangeListener(JSlider slider) {
+            return e -> {
+                if(isDragging())
+                    return; // Moved by the drag itself, which repaints it
+
+                int oldX = thumbRect.x;
+                calculateThumbLocation();
+                if(thumbRect.x == oldX)
+                    return;
+
+                thumbMoves++;
+                int left = Math.min(oldX, thumbRect.x);
+                slider.repaint(left, thumbRect.y, Math.abs(thumbRect.x - oldX) + thumbRect.width, thumbRect.height);
+            };
+        }
+
+        int getTrackWidth() {
+            return trackRect.width;
+        }
+
         @Override
         public void paintTrack(Graphics g) {
             Graphics2D g2 = (Graphics2D) g;
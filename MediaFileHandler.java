@@ -1,12 +1,46 @@
 // import java.io.File;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import models.Media;
+import models.ProbeResult;
 
 public class MediaFileHandler {
-    private static final String FFMPEG_PATH = "ffmpeg/ffmpeg.exe";
+    private static final String FFMPEG_PATH = tool("ffmpeg");
+    private static final String FFPROBE_PATH = tool("ffprobe");
+
+    // Tried in order. The native reader covers the usual formats without starting a process, ffprobe picks up anything it doesn't know
+    private static final List<MetadataProvider> METADATA_PROVIDERS = List.of(
+        new NativeTagReader(),
+        file -> probe(file.toString())
+    );
+
+    // How many ffmpeg/ffprobe processes we've started and how long they took altogether
+    private static final AtomicLong processCount = new AtomicLong();
+    private static final AtomicLong processNanos = new AtomicLong();
+
+    // The bundled ffmpeg folder's copy if there is one (.exe on Windows), otherwise whatever's on the PATH.
+    // -Dmidnight.ffmpegDir=... points it at a different folder
+    private static String tool(String name)
+    {
+        String dir = System.getProperty("midnight.ffmpegDir", "ffmpeg");
+        boolean windows = System.getProperty("os.name").toLowerCase().startsWith("windows");
+
+        Path bundled = Paths.get(dir, windows ? name + ".exe" : name);
+        return Files.isRegularFile(bundled) ? bundled.toString() : name;
+    }
 
     public static void readFile(String path)
     {
@@ -27,7 +61,8 @@ public class MediaFileHandler {
         // DO NOT merge streams
         // pb.redirectErrorStream(true); ← REMOVE
 
-        Process process = pb.start();
+        long start = System.nanoTime();
+        Process process = startProcess(pb);
 
         //consume stderr separately so ffmpeg doesn't hang
         new Thread(() -> {
@@ -47,6 +82,7 @@ public class MediaFileHandler {
         }
 
         process.waitFor();
+        processNanos.addAndGet(System.nanoTime() - start);
 
         byte[] imageBytes = buffer.toByteArray();
         return imageBytes.length > 0 ? imageBytes : null;
@@ -58,10 +94,8 @@ public class MediaFileHandler {
     }
 
     public static String getMetadataJson(String filePath) throws Exception {
-        String ffprobePath = "ffmpeg/ffprobe.exe";
-
         ProcessBuilder pb = new ProcessBuilder(
-            ffprobePath,
+            FFPROBE_PATH,
             "-v", "quiet",
             "-print_format", "json",
             "-show_format",
@@ -71,30 +105,278 @@ public class MediaFileHandler {
 
         pb.redirectErrorStream(true);
 
-        Process process = pb.start();
+        long start = System.nanoTime();
+        Process process = startProcess(pb);
 
         String output = new String(process.getInputStream().readAllBytes());
         process.waitFor();
+        processNanos.addAndGet(System.nanoTime() - start);
 
         return output;
     }
 
+    // Reads duration/bitrate/codec/cover hash out of the file and stamps media with the fingerprint (size + mtime) it was read at.
+    // Returns false, leaving media alone, if the file isn't there to read
+    public static boolean readTechnicalMetadata(Media media)
+    {
+        Path file = Paths.get(media.path);
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (Exception e) {
+            return false;
+        }
+
+        media.fileSize = size;
+        media.fileModified = modified;
+        media.durationMs = 0;
+        media.bitrate = 0;
+        media.codec = null;
+        media.coverHash = null;
+
+        try {
+            ProbeResult probe = readMetadata(media.path);
+            media.durationMs = probe.durationMs;
+            media.bitrate = probe.bitrate;
+            media.codec = probe.codec;
+
+            if(media.durationMs == 0)
+                media.durationMs = readDurationMs(media.path); // The native tag reader doesn't do durations
+            if(media.bitrate == 0 && media.durationMs > 0)
+                media.bitrate = (int)(size * 8000 / media.durationMs); // Average over the whole file, close enough for showing
+
+            byte[] cover = probe.coverArt;
+            if(cover == null && probe.hasAttachedPicture)
+                cover = extractCoverArt(media.path);
+            if(cover != null)
+            {
+                media.coverHash = hash(cover);
+                CoverArtCache.store(media.coverHash, cover); // Rows would only pull it out of the file again otherwise
+            }
+        } catch (Exception e) {
+            e.printStackTrace(); // Still counts as read, so a file ffprobe chokes on doesn't get retried every time it's shown
+        }
+
+        return true;
+    }
+
+    // True if the file changed (or was never read) since readTechnicalMetadata last looked at it. Only stats the file, no processes
+    public static boolean needsTechnicalMetadata(Media media)
+    {
+        if(!media.hasTechnicalMetadata())
+            return true;
+
+        try {
+            Path file = Paths.get(media.path);
+            return Files.size(file) != media.fileSize || Files.getLastModifiedTime(file).toMillis() != media.fileModified;
+        } catch (Exception e) {
+            return false; // File's gone, nothing new to read
+        }
+    }
+
+    static String hash(byte[] data) throws Exception
+    {
+        StringBuilder hex = new StringBuilder();
+        for(byte b : MessageDigest.getInstance("SHA-256").digest(data))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // Tags (plus whatever else the provider knows) from the first MetadataProvider that understands the file
+    public static ProbeResult readMetadata(String path) throws Exception
+    {
+        Path file = Paths.get(path);
+        Exception failure = null;
+
+        for(MetadataProvider provider : METADATA_PROVIDERS)
+        {
+            try {
+                ProbeResult result = provider.read(file);
+                if(result != null)
+                    return result;
+            } catch (Exception e) {
+                failure = e; // Probably a damaged header, let the next one have a go
+            }
+        }
+
+        throw failure != null ? failure : new IllegalArgumentException("Couldn't read " + path);
+    }
+
+    // The cover out of the file, only starting ffmpeg if the native reader doesn't know the format
+    public static byte[] readCoverArt(String path)
+    {
+        try {
+            ProbeResult result = new NativeTagReader().read(Paths.get(path));
+            if(result != null)
+                return result.coverArt;
+        } catch (Exception e) {
+            // Fall through to ffmpeg
+        }
+
+        return extractCoverArt(path);
+    }
+
+    // Format, streams and tags from one ffprobe run, read straight off its output as it comes in instead of building a whole json tree
+    public static ProbeResult probe(String path) throws Exception
+    {
+        ProcessBuilder pb = new ProcessBuilder(
+            FFPROBE_PATH,
+            "-v", "quiet",
+            "-print_format", "json",
+            "-show_format",
+            "-show_streams",
+            path
+        );
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        long start = System.nanoTime();
+        Process process = startProcess(pb);
+        ProbeResult result = new ProbeResult();
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while(reader.hasNext())
+            {
+                switch(reader.nextName())
+                {
+                    case "format": readFormat(reader, result); break;
+                    case "streams": readStreams(reader, result); break;
+                    default: reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            process.waitFor();
+            processNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        return result;
+    }
+
+    private static void readFormat(JsonReader reader, ProbeResult result) throws Exception
+    {
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case "format_name": result.formatName = reader.nextString(); break;
+                case "duration": result.durationMs = (long)(Double.parseDouble(reader.nextString()) * 1000); break;
+                case "bit_rate": result.bitrate = (int)Long.parseLong(reader.nextString()); break;
+                case "tags": readTags(reader, result); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readStreams(JsonReader reader, ProbeResult result) throws Exception
+    {
+        reader.beginArray();
+        while(reader.hasNext())
+        {
+            String codecType = null;
+            String codecName = null;
+            boolean attachedPicture = false;
+
+            reader.beginObject();
+            while(reader.hasNext())
+            {
+                switch(reader.nextName())
+                {
+                    case "codec_type": codecType = reader.nextString(); break;
+                    case "codec_name": codecName = reader.nextString(); break;
+                    case "disposition":
+                        reader.beginObject();
+                        while(reader.hasNext())
+                        {
+                            if(reader.nextName().equals("attached_pic"))
+                                attachedPicture = reader.nextInt() == 1;
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                        break;
+                    case "tags": readTags(reader, result); break; // Ogg/Opus keep their tags on the stream instead of the format
+                    default: reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if(attachedPicture)
+                result.hasAttachedPicture = true;
+            else if(result.codec == null && "audio".equals(codecType))
+                result.codec = codecName;
+        }
+        reader.endArray();
+    }
+
+    private static void readTags(JsonReader reader, ProbeResult result) throws Exception
+    {
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            String name = reader.nextName().toLowerCase();
+            if(reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER)
+                result.tags.putIfAbsent(name, reader.nextString());
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+    }
+
+    private static Process startProcess(ProcessBuilder pb) throws Exception
+    {
+        processCount.incrementAndGet();
+        return pb.start();
+    }
+
+    public static long getProcessCount()
+    {
+        return processCount.get();
+    }
+
+    public static long getProcessMillis()
+    {
+        return processNanos.get() / 1_000_000;
+    }
+
+    // Straight from the file's headers (DurationReader), ffprobe only if those don't say
+    public static long readDurationMs(String path)
+    {
+        long durationMs = DurationReader.readDurationMs(path);
+        if(durationMs > 0)
+            return durationMs;
+
+        try {
+            return (long)(getDuration(path) * 1000);
+        } catch (Exception e) {
+            e.printStackTrace(); // No ffprobe, or it couldn't read it either. Unknown length, but the rest of what we read still counts
+            return 0;
+        }
+    }
+
     public static double getDuration(String path) throws Exception { //Doesn't seem to be working 100% of the time
-        String ffprobePath = "ffmpeg/ffprobe.exe";
         ProcessBuilder pb = new ProcessBuilder(
-            ffprobePath,
+            FFPROBE_PATH,
             "-v", "error",
             "-show_entries", "format=duration",
             "-of", "default=noprint_wrappers=1:nokey=1",
             path
         );
 
-        Process process = pb.start();
+        long start = System.nanoTime();
+        Process process = startProcess(pb);
 
         try (java.util.Scanner sc = new java.util.Scanner(process.getInputStream())) {
             if (sc.hasNext()) {
                 return Double.parseDouble(sc.next().trim());
             }
+        } finally {
+            process.waitFor();
+            processNanos.addAndGet(System.nanoTime() - start);
         }
 
         return 0;
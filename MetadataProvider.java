@@ -0,0 +1,9 @@
+import java.nio.file.Path;
+
+import models.ProbeResult;
+
+// Something that can read tags (and maybe cover art) out of a media file.
+// Returns null if it doesn't understand the file, so MediaFileHandler can move on to the next one
+public interface MetadataProvider {
+    ProbeResult read(Path file) throws Exception;
+}
@@ -1,8 +1,13 @@
-import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.LongConsumer;
 
 import models.Media;
+import models.PlaybackState;
 import models.Playlist;
 
 import uk.co.caprica.vlcj.player.component.EmbeddedMediaListPlayerComponent;
@@ -11,151 +16,535 @@ import uk.co.caprica.vlcj.factory.MediaPlayerFactory;
 import uk.co.caprica.vlcj.player.base.MediaPlayer;
 import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
 
+// Everything that changes playback (buttons, the slider, vlc's callbacks, the preloader finishing) is posted as a command
+// and run one at a time, in order, on the "playback" thread. That thread is the only one that touches the players or the
+// fields below, so nothing needs locking and a burst of skips/seeks can't interleave halfway through each other.
+// What's playing gets published as an immutable PlaybackState, read it from anywhere with getState()
 public class MusicPlayer {
-    private static boolean isPaused = false;    // Tracks if media is currently playing
-    private static boolean isMuted = false;      // Tracks if audio is muted
-    private static boolean isRepeating = false;  // Tracks if repeat mode is enabled
-    private static boolean isShuffling = false;  // Tracks if shuffle mode is enabled
-    // private static boolean playlistVisible = true; // Tracks playlist visibility
-    private static List<Media> currentPlaylist = new ArrayList<>(); // List of media files
-    public static Media currentSong;
-    public static int currentTrackIndex = -1;   // Index of currently playing track (-1 = none) Only used if not shuffling
-
+    private static final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<>();
+    private static volatile PlaybackState state = PlaybackState.EMPTY; // Only ever replaced on the playback thread
 
     public static MediaPlayerFactory factory;
+    // Two players take turns: while one plays, the next track gets opened (and paused on its first frame) on the standby one,
+    // so when the current track ends the switch is just unpausing, no opening/probing/buffering in between
     private static MediaPlayer player;
+    private static MediaPlayer standby;
+
+    private static final long PRELOAD_AHEAD_MS = 5000; // How long before the end of a track the next one gets opened
+    private static final ExecutorService preloader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "track-preloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static Media preloadedSong; // Sitting paused on standby, ready to go
+    private static int preloadedIndex = -1;
+    private static boolean preloadRequested;
+    private static int preloadGeneration; // Bumped whenever a preload stops being what should play next
+    private static long currentLengthMs;
+    private static int failedInARow; // Tracks vlc gave up on since something last actually played
+
+    private static final ShuffleEngine shuffle = new ShuffleEngine();
+    private static final PlayHistory history = new PlayHistory(Integer.getInteger("midnight.historySize", 1000));
+
+    private static long trackEndedAt; // nanoTime the last track finished, 0 if we're not between tracks
+    private static volatile long lastGapNanos = -1;
+    static volatile LongConsumer transitionListener; // Gets every switch's gap in nanos, for PlaybackHarness
+
+    static {
+        Thread loop = new Thread(MusicPlayer::runCommands, "playback");
+        loop.setDaemon(true);
+        loop.start();
+    }
 
     public static void initialize()
     {
         MediaVisuals.visualizer = new EmbeddedMediaListPlayerComponent();
         MediaVisuals.visualizer.mediaPlayer().audio().mute();
 
+        startPlayers();
+        post(() -> {
+            try {
+                history.load(Database.getDataDirectory().resolve("history.bin"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(history::flush, "history-flush")); // Whatever the writer didn't get to
+    }
+
+    // Just the vlc side of initialize, no visualizer or saved history
+    static void startPlayers()
+    {
         factory = new MediaPlayerFactory();
+        post(MusicPlayer::createPlayers);
+    }
+
+    // Safe from any thread, never blocks
+    public static PlaybackState getState()
+    {
+        return state;
+    }
+
+//#region Commands
+    private static void post(Runnable command)
+    {
+        commands.add(command);
+    }
+
+    private static void runCommands()
+    {
+        while(true)
+        {
+            Runnable command;
+            try {
+                command = commands.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                command.run();
+            } catch (Exception e) {
+                e.printStackTrace(); // One bad command shouldn't take playback down with it
+            }
+        }
+    }
+
+    private static void publish(PlaybackState next)
+    {
+        state = next;
+    }
+
+    // Blocks until everything posted before it has run
+    static void awaitIdle() throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        post(done::countDown);
+        done.await();
+    }
+
+    // Plays queue[index], and the rest of queue after it. The list gets copied straight away, so it's fine to keep changing it
+    public static void play(List<Media> queue, int index)
+    {
+        List<Media> copy = List.copyOf(queue);
+        post(() -> startTrack(state.playing(copy, index)));
+    }
+
+    public static void togglePaused()
+    {
+        post(() -> {
+            if(state.current == null)
+                return;
+
+            publish(state.withPaused(!state.paused));
+            if(player != null)
+                player.controls().setPause(state.paused);
+            PlaybackProgress.setPaused(state.paused);
+        });
+    }
+
+    public static void toggleMuted()
+    {
+        post(() -> {
+            publish(state.withMuted(!state.muted));
+            if(player != null) {
+                player.audio().setMute(state.muted);
+                standby.audio().setMute(state.muted);
+            }
+        });
+    }
+
+    public static void toggleShuffling()
+    {
+        post(() -> {
+            publish(state.withShuffling(!state.shuffling));
+            cancelPreload(); // Whatever's on standby was picked the other way
+        });
+    }
+
+    public static void toggleRepeating()
+    {
+        post(() -> {
+            publish(state.withRepeating(!state.repeating));
+            cancelPreload(); // Whatever's on standby is the next song, not this one again (or the other way around)
+        });
+    }
+
+    public static void setProgress(long time)
+    {
+        post(() -> {
+            if(player == null || state.current == null)
+                return;
+
+            player.controls().setTime(time);
+            PlaybackProgress.timeChanged(time, !state.paused);
+        });
+    }
+
+    public static void playNext()
+    {
+        post(MusicPlayer::playNextTrack);
+    }
+
+    public static void playPrevious()
+    {
+        post(MusicPlayer::playPreviousTrack);
+    }
+
+    // New queue for whatever comes after the current song, which keeps playing
+    public static void getPlaylist(List<Media> playlist)
+    {
+        List<Media> copy = List.copyOf(playlist);
+        post(() -> {
+            publish(state.withQueue(copy));
+            cancelPreload();
+        });
+    }
+
+    public static void getPlaylist(Playlist playlist)
+    {
+        //Just in case
+    }
+//#endregion Commands
+
+    // Everything from here down only runs on the playback thread
+
+    private static void createPlayers()
+    {
         player = factory.mediaPlayers().newMediaPlayer();
+        standby = factory.mediaPlayers().newMediaPlayer();
 
         // System.out.println(player.mediaPlayerInstance());
 
-        player.events().addMediaPlayerEventListener(new MediaPlayerEventAdapter() {
+        // Both players share this. None of it touches our state directly, it all gets posted, and whatever comes from
+        // the one on standby gets ignored once it's run (it fires playing/paused/etc. while preloading)
+        MediaPlayerEventAdapter events = new MediaPlayerEventAdapter() {
             @Override
             public void finished(MediaPlayer mediaPlayer) {
-                if(currentPlaylist != null)
-                {
-                    new Thread(() -> {
-                        try {
-                            Thread.sleep(1); //Stops from starting another song when it thinks it's supposed to be finished
-                        } catch(Exception e) {} //idk why it needs a try catch statement, but oh well, lol
-                        playNextTrack();
-                    }).start();
-                }
+                long endedAt = System.nanoTime();
+                post(() -> trackFinished(mediaPlayer, endedAt));
+            }
+
+            @Override
+            public void playing(MediaPlayer mediaPlayer) {
+                long startedAt = System.nanoTime();
+                post(() -> trackStarted(mediaPlayer, startedAt));
             }
 
             @Override
             public void error(MediaPlayer mediaPlayer) {
-                System.out.println("had an error");
+                post(() -> trackFailed(mediaPlayer));
+            }
+
+            @Override
+            public void lengthChanged(MediaPlayer mediaPlayer, long newLength) {
+                post(() -> {
+                    if(mediaPlayer != player)
+                        return;
+
+                    currentLengthMs = newLength;
+                    PlaybackProgress.lengthChanged(newLength);
+                });
             }
 
             @Override
             public void timeChanged(MediaPlayer mediaPlayer, long newTime) {
-                MediaControlBar.moveProgress((int)newTime / 1000);
+                post(() -> timeChangedOn(mediaPlayer, newTime));
             }
+        };
+
+        player.events().addMediaPlayerEventListener(events);
+        standby.events().addMediaPlayerEventListener(events);
+    }
+
+    private static void trackFinished(MediaPlayer finished, long endedAt)
+    {
+        if(finished != player || state.current == null)
+            return;
+
+        trackEndedAt = endedAt;
+        if(switchToPreloaded())
+            return;
+
+        int next = upcomingIndex(); // Nothing ready, open it the slow way
+        if(next < 0) {
+            trackEndedAt = 0;
+            stopOnCurrent(); // Nothing left to play (the playlist got emptied under us)
+            return;
+        }
+        startTrack(state.playing(next));
+    }
+
+    // vlc couldn't open/play it (missing, unreadable...). Moves on to whatever's next, unless everything in the queue failed in
+    // a row, and never to the same one again even on repeat, so a broken file can't spin forever
+    private static void trackFailed(MediaPlayer failed)
+    {
+        if(failed != player || state.current == null)
+            return;
+
+        new IllegalStateException("Couldn't play " + state.current.path).printStackTrace();
+        trackEndedAt = 0;
+        failedInARow++;
+
+        int next = nextTrackIndex();
+        if(next < 0 || next == state.index || failedInARow >= state.queue.size()) {
+            stopOnCurrent();
+            return;
+        }
+        startTrack(state.playing(next));
+    }
+
+    private static void stopOnCurrent()
+    {
+        publish(state.withPaused(true));
+        PlaybackProgress.setPaused(true);
+    }
+
+    private static void trackStarted(MediaPlayer started, long startedAt)
+    {
+        if(started == player)
+            failedInARow = 0;
+        if(started != player || trackEndedAt == 0)
+            return;
+
+        lastGapNanos = startedAt - trackEndedAt;
+        trackEndedAt = 0;
+        LongConsumer listener = transitionListener;
+        if(listener != null)
+            listener.accept(lastGapNanos);
+    }
+
+    private static void timeChangedOn(MediaPlayer mediaPlayer, long newTime)
+    {
+        if(mediaPlayer != player)
+            return;
+
+        PlaybackProgress.timeChanged(newTime, !state.paused);
+
+        Media current = state.current;
+        long length = currentLengthMs > 0 ? currentLengthMs : (current != null ? current.durationMs : 0);
+        if(!preloadRequested && length > 0 && newTime >= length - PRELOAD_AHEAD_MS)
+            preloadNextTrack();
+    }
+
+//#region Preloading
+    // Opens whatever plays next on the standby player and leaves it paused on its first frame
+    private static void preloadNextTrack()
+    {
+        if(state.queue.isEmpty() || standby == null)
+            return;
+
+        preloadRequested = true;
+        int index = upcomingIndex();
+        if(index < 0)
+            return;
+        Media song = state.queue.get(index);
+        int generation = preloadGeneration;
+        MediaPlayer target = standby;
+
+        preloader.submit(() -> {
+            boolean ready = target.media().startPaused(song.path); // Blocks until it's ready, so not on the playback thread
+            post(() -> {
+                if(ready && generation == preloadGeneration) { // Otherwise something else got picked in the meantime
+                    preloadedIndex = index;
+                    preloadedSong = song;
+                }
+            });
         });
+    }
 
-        
+    // Unpauses the standby player and swaps the two over. False if nothing's ready
+    private static boolean switchToPreloaded()
+    {
+        Media next = preloadedSong;
+        if(next == null || preloadedIndex >= state.queue.size())
+            return false;
+
+        MediaPlayer ready = standby;
+        MediaPlayer finished = player;
+        ready.controls().play();
+
+        player = ready;
+        standby = finished;
+        currentLengthMs = 0;
+        preloadedSong = null;
+        preloadRequested = false;
+        publish(state.playing(preloadedIndex));
+        trackStarting();
+
+        PlaybackProgress.newSong(next.durationMs);
+        preloader.submit(() -> finished.controls().stop()); // Frees it up for the next preload
+        return true;
     }
 
-    public static void togglePaused()
+    // Whatever's on standby is no longer what plays next (new track picked, playlist changed, shuffle toggled...)
+    private static void cancelPreload()
     {
-        isPaused = !isPaused;
+        preloadGeneration++;
+        preloadedSong = null;
+        preloadRequested = false;
 
-        player.controls().setPause(isPaused);
+        MediaPlayer idle = standby;
+        if(idle != null)
+            preloader.submit(() -> idle.controls().stop());
     }
 
+    // How long the last switch between tracks took, from the old one finishing to the new one playing. -1 before the first
+    public static long getLastTransitionGapMillis()
+    {
+        return lastGapNanos < 0 ? -1 : lastGapNanos / 1_000_000;
+    }
+//#endregion Preloading
 
     // Play next track in playlist
-    private static void playNextTrack() { //causing issues for some reason...
-        if (currentPlaylist.isEmpty()) return;  // Nothing to play
-        
-        // Calculate next track index
-        if (isShuffling) {
-            // Random track for shuffle mode
-            currentTrackIndex = (int) (Math.random() * currentPlaylist.size());
-        } else {
-            // Next track in sequence, wrap around to beginning
-            currentTrackIndex = (currentPlaylist.size() + currentTrackIndex + 1) % currentPlaylist.size();
+    private static void playNextTrack() {
+        Media forward = findMedia(history.peekForward()); // Went back earlier, so next is what played after this last time
+        if (forward != null) {
+            startTrack(state.playing(forward));
+            return;
         }
 
-        // System.out.println(currentPlaylist.get(currentTrackIndex).path);
-        playTrack(currentPlaylist.get(currentTrackIndex));  // Play the selected track
+        int next = nextTrackIndex();
+        if (next < 0) return;  // Nothing to play
+
+        startTrack(state.playing(next));
     }
-    
-    // Play previous track in playlist
-    private static void playPreviousTrack() { //I might make it remember the past however many songs played to be able to run back on o7
-        if (currentPlaylist.isEmpty()) return;  // Nothing to play
-        
-        // Calculate previous track index (wrap around to end if needed)
-        currentTrackIndex = (currentTrackIndex - 1 + currentPlaylist.size()) % currentPlaylist.size();
-        
-        // playTrack(currentTrackIndex);  // Play the selected track
+
+    // What plays when this one ends by itself, worked out ahead of time when preloading. -1 if nothing does
+    private static int upcomingIndex() {
+        if (state.repeating && state.index >= 0)
+            return state.index;
+
+        int forward = indexOf(history.peekForward());
+        if (forward >= 0)
+            return forward;
+
+        return nextTrackIndex();
     }
 
-    public static void setProgress(long time)
-    {
-        player.controls().setTime(time);
+    // -1 if there's nothing to play next (empty queue, or shuffle picked something that's not in it anymore)
+    private static int nextTrackIndex() {
+        int size = state.queue.size();
+        if (size == 0)
+            return -1;
+
+        if (state.shuffling) {
+            // Weighted, and nothing comes back round too soon (see ShuffleEngine)
+            shuffle.setQueue(state.queue); // Free unless the queue changed
+            Media picked = shuffle.next();
+            return picked == null ? -1 : state.queue.indexOf(picked);
+        }
+
+        // Next track in sequence, wrap around to beginning (or the start, if what's playing isn't in the queue)
+        return (state.index + 1) % size;
     }
-    
-    // Get name of current track
-    private static String getCurrentTrackName() {
-        if (currentTrackIndex >= 0 && currentTrackIndex < currentPlaylist.size()) {
-            return currentPlaylist.get(currentTrackIndex).name;
+
+    // Whatever actually played before this one (shuffled or not), skipping anything that's been deleted since
+    private static void playPreviousTrack() {
+        int steps = 0;
+        for (int id = history.back(); id != PlayHistory.NONE; id = history.back()) {
+            steps++;
+            Media previous = findMedia(id);
+            if (previous != null) {
+                startTrack(state.playing(previous));
+                return;
+            }
         }
-        return "No track";  // Default text when no track is loaded
+        for (; steps > 0; steps--)
+            history.forward(); // Nothing back there we can play, put the cursor back on what's playing
+
+        if (state.queue.isEmpty()) return;  // Nothing to play
+
+        // Nothing played before this, so the one before it in the playlist (wrap around to end if needed)
+        int size = state.queue.size();
+        startTrack(state.playing((Math.max(state.index, 0) - 1 + size) % size));
     }
 
-    public static void playTrack(Media song)
-    {
-        currentSong = song;
-        
-        try {
-            MediaControlBar.setNewSong((int)MediaFileHandler.getDuration(song.path));
-            player.media().play(song.path);
+    private static int indexOf(int id) {
+        if (id == PlayHistory.NONE)
+            return -1;
+
+        List<Media> queue = state.queue;
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).id == id)
+                return i;
+        }
+        return -1;
+    }
 
+    // From the queue if it's in there, otherwise the db (history can go back past the current playlist). null if it's gone
+    private static Media findMedia(int id) {
+        int index = indexOf(id);
+        if (index >= 0)
+            return state.queue.get(index);
+        if (id == PlayHistory.NONE)
+            return null;
 
-            // if(MediaVisuals.visualizer.getParent() != null)
-            //     MediaVisuals.visualizer.mediaPlayer().media().play(song.path);
+        try {
+            return Database.findMediaById(id);
         } catch (Exception e) {
-            e.printStackTrace();
+            return null; // Deleted
         }
-        //MediaFileHander. (some integration here?)
     }
 
-    public static void getPlaylist(Playlist playlist)
+    // Get name of current track
+    private static String getCurrentTrackName() {
+        Media current = state.current;
+        return current != null ? current.name : "No track";  // Default text when no track is loaded
+    }
+
+    // Goes in the history, and whatever just started (picked by shuffle or not) sits out for a while before shuffle can pick it again
+    private static void trackStarting()
     {
-        //Just in case
+        if(state.current.id != 0 && history.played(state.current.id))
+            history.save();
+
+        if(state.shuffling) {
+            shuffle.setQueue(state.queue);
+            shuffle.played(state.current);
+        }
     }
 
-    public static void getPlaylist(List<Media> playlist)
+    private static void startTrack(PlaybackState next)
     {
-        currentPlaylist = playlist;
+        publish(next);
+        trackStarting();
+        cancelPreload();
+        currentLengthMs = 0;
 
-        if(isShuffling)
-            currentTrackIndex = -1;
+        try {
+            Media song = next.current;
+            long durationMs = song.durationMs > 0 ? song.durationMs : MediaFileHandler.readDurationMs(song.path); // Only reads the file if the db never got a duration for it
+            PlaybackProgress.newSong(durationMs);
+            if(player != null)
+                player.media().play(song.path);
 
-        // playNextTrack();
+
+            // if(MediaVisuals.visualizer.getParent() != null)
+            //     MediaVisuals.visualizer.mediaPlayer().media().play(song.path);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        //MediaFileHander. (some integration here?)
     }
 
     public static void detatchVisuals()
     {
         // player.videoSurface().set(null); //Doesn't work in this version unfortunately, wish it did, lol
-        
+
 
     }
 
     public static void syncVisuals()
     {
-        long currentTime = player.status().time();
+        post(() -> {
+            if(player == null || state.current == null)
+                return;
 
-        MediaVisuals.visualizer.mediaPlayer().media().play(currentSong.path);
-        MediaVisuals.visualizer.mediaPlayer().controls().setTime(currentTime);
+            long currentTime = player.status().time();
+
+            MediaVisuals.visualizer.mediaPlayer().media().play(state.current.path);
+            MediaVisuals.visualizer.mediaPlayer().controls().setTime(currentTime);
+        });
     }
-    
 }
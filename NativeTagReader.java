@@ -0,0 +1,644 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+import models.ProbeResult;
+
+// Reads tags and cover art straight out of the file, no processes involved.
+// Only the parts of the file that hold metadata get memory mapped (the ID3 tag, FLAC metadata blocks, the first Ogg pages,
+// the MP4 moov box, the WAV LIST chunk), never the audio itself. Handles ID3v2.2/2.3/2.4 (mp3), FLAC, Ogg Vorbis/Opus, MP4/M4A and WAV,
+// and gives back null for anything else so MediaFileHandler can fall back to ffprobe
+public class NativeTagReader implements MetadataProvider {
+    private static final int MAX_REGION = 32 * 1024 * 1024; // No real header is this big, anything claiming to be is broken
+    private static final int OGG_FIRST_MAP = 64 * 1024; // Grows (up to MAX_REGION) if the comment packet is bigger, which it is with cover art
+
+    private static final int PICTURE_FRONT_COVER = 3;
+
+    // What's been read so far, plus a bit of bookkeeping that doesn't belong in the result
+    private static class Reading extends ProbeResult {
+        boolean hasFrontCover;
+    }
+
+    @Override
+    public ProbeResult read(Path file) throws Exception {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < 12)
+                return null;
+
+            Reading result = new Reading();
+            long offset = 0;
+            ByteBuffer head = read(channel, 0, 12);
+
+            if(matches(head, 0, "ID3")) {
+                int tagSize = 10 + syncSafe(head, 6) + ((head.get(5) & 0x10) != 0 ? 10 : 0); // + footer
+                readId3(map(channel, 0, Math.min(tagSize, size)), result);
+
+                offset = tagSize;
+                head = offset + 12 <= size ? read(channel, offset, 12) : null;
+            }
+
+            if(head != null && matches(head, 0, "fLaC")) {
+                result.formatName = "flac";
+                result.codec = "flac";
+                readFlac(channel, offset + 4, result);
+            } else if(head != null && matches(head, 0, "OggS")) {
+                result.formatName = "ogg";
+                if(!readOgg(channel, offset, result))
+                    return null;
+            } else if(head != null && matches(head, 4, "ftyp")) {
+                result.formatName = "mp4";
+                readMp4(channel, result);
+            } else if(head != null && matches(head, 0, "RIFF") && matches(head, 8, "WAVE")) {
+                result.formatName = "wav";
+                readWav(channel, result);
+            } else if(offset > 0 || (head != null && isMpegFrame(head))) {
+                result.formatName = "mp3";
+                result.codec = "mp3";
+            } else {
+                return null;
+            }
+
+            result.hasAttachedPicture = result.coverArt != null;
+            return result;
+        }
+    }
+
+//#region ID3
+    private static void readId3(ByteBuffer tag, Reading result) {
+        int version = tag.get(3);
+        int flags = tag.get(5) & 0xFF;
+        int end = Math.min(tag.limit(), 10 + syncSafe(tag, 6));
+
+        if(version < 2 || version > 4)
+            return;
+
+        if(version < 4 && (flags & 0x80) != 0) { // Whole tag is unsynchronised (2.4 does it per frame instead)
+            tag = unsynchronise(slice(tag, 0, end));
+            end = tag.limit();
+        }
+
+        int pos = 10;
+        if(version >= 3 && (flags & 0x40) != 0) // Extended header, nothing we need in there
+            pos += version == 4 ? syncSafe(tag, 10) : tag.getInt(10) + 4;
+
+        int idLength = version == 2 ? 3 : 4;
+        int headerLength = version == 2 ? 6 : 10;
+
+        while(pos + headerLength <= end) {
+            if(tag.get(pos) == 0)
+                break; // Hit the padding
+
+            String id = ascii(tag, pos, idLength);
+            int frameSize;
+            int frameFlags = 0;
+            if(version == 2)
+                frameSize = ((tag.get(pos + 3) & 0xFF) << 16) | ((tag.get(pos + 4) & 0xFF) << 8) | (tag.get(pos + 5) & 0xFF);
+            else {
+                frameSize = version == 4 ? syncSafe(tag, pos + 4) : tag.getInt(pos + 4);
+                frameFlags = tag.getShort(pos + 8) & 0xFFFF;
+            }
+
+            pos += headerLength;
+            if(frameSize <= 0 || pos + frameSize > end)
+                break;
+
+            ByteBuffer frame = slice(tag, pos, frameSize);
+            pos += frameSize;
+
+            if(version == 4) {
+                if((frameFlags & 0x000C) != 0)
+                    continue; // Compressed or encrypted, not worth it
+                if((frameFlags & 0x0001) != 0) // Data length indicator in front of the actual data
+                    frame = slice(frame, 4, frame.limit() - 4);
+                if((frameFlags & 0x0002) != 0)
+                    frame = unsynchronise(frame);
+            } else if(version == 3 && (frameFlags & 0x00C0) != 0) {
+                continue;
+            }
+
+            readId3Frame(id, frame, version, result);
+        }
+    }
+
+    private static void readId3Frame(String id, ByteBuffer frame, int version, Reading result) {
+        if(frame.limit() < 1)
+            return;
+
+        switch(id) {
+            case "TIT2", "TT2" -> putTag(result, "title", id3Text(frame));
+            case "TPE1", "TP1" -> putTag(result, "artist", id3Text(frame));
+            case "TALB", "TAL" -> putTag(result, "album", id3Text(frame));
+            case "TPE2", "TP2" -> putTag(result, "album_artist", id3Text(frame));
+            case "TRCK", "TRK" -> putTag(result, "track", id3Text(frame));
+            case "TCON", "TCO" -> putTag(result, "genre", id3Text(frame));
+            case "TDRC", "TYER", "TYE" -> putTag(result, "date", id3Text(frame));
+            case "APIC", "PIC" -> readId3Picture(frame, version, result);
+            default -> {}
+        }
+    }
+
+    private static String id3Text(ByteBuffer frame) {
+        int encoding = frame.get(0);
+        int end = terminator(frame, 1, encoding); // 2.4 can have several values split by nulls, the first one will do
+        return decode(frame, 1, end - 1, encoding).trim();
+    }
+
+    private static void readId3Picture(ByteBuffer frame, int version, Reading result) {
+        int encoding = frame.get(0);
+        int pos = 1;
+
+        if(version == 2)
+            pos += 3; // 3 letter image format instead of a mime type
+        else
+            pos = terminator(frame, pos, 0) + 1;
+
+        if(pos >= frame.limit())
+            return;
+
+        int pictureType = frame.get(pos++) & 0xFF;
+        pos = terminator(frame, pos, encoding) + (encoding == 1 || encoding == 2 ? 2 : 1); // Skip the description
+
+        if(pos < frame.limit())
+            offerCover(result, bytes(frame, pos, frame.limit() - pos), pictureType);
+    }
+
+    // Turns every FF 00 back into FF
+    private static ByteBuffer unsynchronise(ByteBuffer data) {
+        byte[] out = new byte[data.limit()];
+        int length = 0;
+
+        for(int i = 0; i < data.limit(); i++) {
+            byte b = data.get(i);
+            out[length++] = b;
+            if(b == (byte) 0xFF && i + 1 < data.limit() && data.get(i + 1) == 0)
+                i++;
+        }
+
+        return ByteBuffer.wrap(out, 0, length).slice();
+    }
+//#endregion ID3
+
+//#region FLAC
+    private static void readFlac(FileChannel channel, long offset, Reading result) throws Exception {
+        long size = channel.size();
+        boolean last = false;
+
+        while(!last && offset + 4 <= size) {
+            ByteBuffer header = read(channel, offset, 4);
+            last = (header.get(0) & 0x80) != 0;
+            int type = header.get(0) & 0x7F;
+            int length = ((header.get(1) & 0xFF) << 16) | ((header.get(2) & 0xFF) << 8) | (header.get(3) & 0xFF);
+            offset += 4;
+
+            if(type == 4)
+                readVorbisComment(map(channel, offset, length), 0, result);
+            else if(type == 6)
+                readFlacPicture(map(channel, offset, length), result);
+
+            offset += length;
+        }
+    }
+
+    // The METADATA_BLOCK_PICTURE layout, which Ogg also uses (base64'd inside a comment)
+    private static void readFlacPicture(ByteBuffer block, Reading result) {
+        block.order(ByteOrder.BIG_ENDIAN);
+        if(block.limit() < 32)
+            return;
+
+        int pictureType = block.getInt(0);
+        int pos = 4;
+        pos += 4 + block.getInt(pos); // Mime type
+        if(pos + 4 > block.limit())
+            return;
+        pos += 4 + block.getInt(pos); // Description
+        pos += 16; // Width, height, colour depth, colours used
+        if(pos + 4 > block.limit())
+            return;
+
+        int length = block.getInt(pos);
+        pos += 4;
+        if(length > 0 && pos + length <= block.limit())
+            offerCover(result, bytes(block, pos, length), pictureType);
+    }
+//#endregion FLAC
+
+//#region Vorbis Comments
+    private static void readVorbisComment(ByteBuffer data, int pos, Reading result) {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if(pos + 8 > data.limit())
+            return;
+
+        pos += 4 + data.getInt(pos); // Vendor string
+        if(pos + 4 > data.limit() || pos < 0)
+            return;
+
+        int count = data.getInt(pos);
+        pos += 4;
+
+        for(int i = 0; i < count && pos + 4 <= data.limit(); i++) {
+            int length = data.getInt(pos);
+            pos += 4;
+            if(length < 0 || pos + length > data.limit())
+                return;
+
+            String comment = decode(data, pos, length, 3);
+            pos += length;
+
+            int equals = comment.indexOf('=');
+            if(equals <= 0)
+                continue;
+
+            String key = comment.substring(0, equals).toLowerCase();
+            String value = comment.substring(equals + 1);
+
+            try {
+                if(key.equals("metadata_block_picture"))
+                    readFlacPicture(ByteBuffer.wrap(Base64.getDecoder().decode(value.trim())), result);
+                else if(key.equals("coverart")) // The old unofficial way, just the raw image
+                    offerCover(result, Base64.getDecoder().decode(value.trim()), PICTURE_FRONT_COVER);
+                else
+                    putTag(result, key.equals("albumartist") ? "album_artist" : key, value);
+            } catch(IllegalArgumentException e) {
+                // Bad base64, just skip that picture
+            }
+        }
+    }
+//#endregion Vorbis Comments
+
+//#region Ogg
+    // The comment header is the 2nd packet of the first stream, and packets can be split across pages,
+    // so this puts them back together until it has that one
+    private static boolean readOgg(FileChannel channel, long offset, Reading result) throws Exception {
+        long available = channel.size() - offset;
+        int mapped = (int) Math.min(available, OGG_FIRST_MAP);
+
+        while(true) {
+            ByteBuffer data = map(channel, offset, mapped);
+            Boolean found = readOggPackets(data, result);
+
+            if(found != null)
+                return found;
+            if(mapped >= available || mapped >= MAX_REGION)
+                return result.codec != null; // Ran out of file, but knowing the codec is still something
+
+            mapped = (int) Math.min(Math.min(available, MAX_REGION), (long) mapped * 2);
+        }
+    }
+
+    // true once the comment packet's been read, false if this isn't something we can read, null if it needs more of the file
+    private static Boolean readOggPackets(ByteBuffer data, Reading result) {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        int packetIndex = 0;
+        int serial = 0;
+        int pos = 0;
+
+        while(pos + 27 <= data.limit()) {
+            if(!matches(data, pos, "OggS"))
+                return false;
+
+            int pageSerial = data.getInt(pos + 14);
+            int segments = data.get(pos + 26) & 0xFF;
+            if(pos + 27 + segments > data.limit())
+                return null;
+
+            if(pos == 0)
+                serial = pageSerial;
+
+            int body = pos + 27 + segments;
+            int bodyLength = 0;
+            for(int i = 0; i < segments; i++)
+                bodyLength += data.get(pos + 27 + i) & 0xFF;
+            if(body + bodyLength > data.limit())
+                return null;
+
+            if(pageSerial == serial) { // Other streams (a video track, say) can be mixed in, ignore them
+                int segmentStart = body;
+                for(int i = 0; i < segments; i++) {
+                    int lacing = data.get(pos + 27 + i) & 0xFF;
+                    packet.write(bytes(data, segmentStart, lacing), 0, lacing);
+                    segmentStart += lacing;
+
+                    if(lacing < 255) { // Packet's done
+                        ByteBuffer complete = ByteBuffer.wrap(packet.toByteArray());
+                        packet.reset();
+
+                        if(packetIndex == 0 && !readOggIdentification(complete, result))
+                            return false;
+                        if(packetIndex == 1) {
+                            readOggComment(complete, result);
+                            return true;
+                        }
+                        packetIndex++;
+                    }
+                }
+            }
+
+            pos = body + bodyLength;
+        }
+
+        return null;
+    }
+
+    private static boolean readOggIdentification(ByteBuffer packet, Reading result) {
+        if(matches(packet, 0, "\u0001vorbis"))
+            result.codec = "vorbis";
+        else if(matches(packet, 0, "OpusHead"))
+            result.codec = "opus";
+        else if(matches(packet, 0, "\u007FFLAC"))
+            result.codec = "flac";
+        else
+            return false;
+
+        return true;
+    }
+
+    private static void readOggComment(ByteBuffer packet, Reading result) {
+        if(matches(packet, 0, "\u0003vorbis"))
+            readVorbisComment(packet, 7, result);
+        else if(matches(packet, 0, "OpusTags"))
+            readVorbisComment(packet, 8, result);
+        else if((packet.get(0) & 0x7F) == 4) // Ogg FLAC, the comment is a normal FLAC metadata block
+            readVorbisComment(packet, 4, result);
+    }
+//#endregion Ogg
+
+//#region MP4
+    // Only maps the moov box, which could be at either end of the file (mdat, the audio, is usually the rest of it)
+    private static void readMp4(FileChannel channel, Reading result) throws Exception {
+        long size = channel.size();
+        long pos = 0;
+
+        while(pos + 8 <= size) {
+            ByteBuffer header = read(channel, pos, 16);
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            String type = ascii(header, 4, 4);
+            int headerLength = 8;
+
+            if(boxSize == 1) {
+                boxSize = header.getLong(8);
+                headerLength = 16;
+            } else if(boxSize == 0) {
+                boxSize = size - pos;
+            }
+
+            if(boxSize < headerLength)
+                return;
+
+            if(type.equals("moov")) {
+                if(boxSize - headerLength <= MAX_REGION)
+                    readMoov(map(channel, pos + headerLength, boxSize - headerLength), result);
+                return;
+            }
+
+            pos += boxSize;
+        }
+    }
+
+    private static void readMoov(ByteBuffer moov, Reading result) {
+        forEachBox(moov, 0, moov.limit(), (type, start, end) -> {
+            if(type.equals("udta")) {
+                int meta = findBox(moov, start, end, "meta");
+                if(meta >= 0) {
+                    int metaEnd = meta + moov.getInt(meta);
+                    int ilst = findBox(moov, meta + 12, metaEnd, "ilst"); // meta is a full box, 4 bytes of version/flags before its children
+                    if(ilst >= 0)
+                        readIlst(moov, ilst + 8, ilst + moov.getInt(ilst), result);
+                }
+            } else if(type.equals("trak") && result.codec == null) {
+                readMp4Codec(moov, start, end, result);
+            }
+        });
+    }
+
+    private static void readMp4Codec(ByteBuffer moov, int start, int end, Reading result) {
+        int box = start;
+        int boxEnd = end;
+        for(String type : new String[] { "mdia", "minf", "stbl", "stsd" }) {
+            box = findBox(moov, box, boxEnd, type);
+            if(box < 0)
+                return;
+            boxEnd = box + moov.getInt(box);
+            box += 8;
+        }
+
+        // stsd: version/flags, entry count, then the first entry's size and type
+        if(box + 16 > boxEnd)
+            return;
+
+        String entry = ascii(moov, box + 12, 4);
+        switch(entry) {
+            case "mp4a" -> result.codec = "aac";
+            case "alac" -> result.codec = "alac";
+            case "Opus" -> result.codec = "opus";
+            case "fLaC" -> result.codec = "flac";
+            case "ac-3", "ec-3" -> result.codec = entry.replace("-", "");
+            default -> {} // Not an audio track
+        }
+    }
+
+    private static void readIlst(ByteBuffer moov, int start, int end, Reading result) {
+        forEachBox(moov, start, end, (type, itemStart, itemEnd) -> {
+            int data = findBox(moov, itemStart, itemEnd, "data");
+            if(data < 0)
+                return;
+
+            int dataEnd = data + moov.getInt(data);
+            int valueType = moov.getInt(data + 8) & 0xFFFFFF;
+            int value = data + 16; // After the type and locale
+            if(value > dataEnd)
+                return;
+
+            switch(type) {
+                case "©nam" -> putTag(result, "title", decode(moov, value, dataEnd - value, 3));
+                case "©ART" -> putTag(result, "artist", decode(moov, value, dataEnd - value, 3));
+                case "©alb" -> putTag(result, "album", decode(moov, value, dataEnd - value, 3));
+                case "aART" -> putTag(result, "album_artist", decode(moov, value, dataEnd - value, 3));
+                case "©gen" -> putTag(result, "genre", decode(moov, value, dataEnd - value, 3));
+                case "©day" -> putTag(result, "date", decode(moov, value, dataEnd - value, 3));
+                case "covr" -> {
+                    if(valueType == 13 || valueType == 14 || valueType == 27 || valueType == 0) // JPEG, PNG, BMP or unspecified
+                        offerCover(result, bytes(moov, value, dataEnd - value), PICTURE_FRONT_COVER);
+                }
+                default -> {}
+            }
+        });
+    }
+
+    private interface BoxVisitor {
+        void visit(String type, int contentStart, int contentEnd);
+    }
+
+    private static void forEachBox(ByteBuffer data, int start, int end, BoxVisitor visitor) {
+        int pos = start;
+        while(pos + 8 <= end) {
+            int size = data.getInt(pos);
+            if(size < 8 || pos + size > end)
+                return;
+
+            visitor.visit(ascii(data, pos + 4, 4), pos + 8, pos + size);
+            pos += size;
+        }
+    }
+
+    // Where the box starts (its size field), or -1
+    private static int findBox(ByteBuffer data, int start, int end, String type) {
+        int pos = start;
+        while(pos + 8 <= end) {
+            int size = data.getInt(pos);
+            if(size < 8 || pos + size > end)
+                return -1;
+
+            if(matches(data, pos + 4, type))
+                return pos;
+            pos += size;
+        }
+        return -1;
+    }
+//#endregion MP4
+
+//#region WAV
+    private static void readWav(FileChannel channel, Reading result) throws Exception {
+        long size = channel.size();
+        long pos = 12;
+
+        while(pos + 8 <= size) {
+            ByteBuffer header = read(channel, pos, 12).order(ByteOrder.LITTLE_ENDIAN);
+            String id = ascii(header, 0, 4);
+            long length = header.getInt(4) & 0xFFFFFFFFL;
+
+            if(id.equals("fmt ") && length >= 2) {
+                int format = header.getShort(8) & 0xFFFF;
+                result.codec = format == 1 ? "pcm" : format == 3 ? "pcm_float" : "wav";
+            } else if(id.equals("LIST") && matches(header, 8, "INFO") && length <= MAX_REGION) {
+                ByteBuffer list = map(channel, pos + 12, length - 4).order(ByteOrder.LITTLE_ENDIAN);
+                int item = 0;
+                while(item + 8 <= list.limit()) {
+                    String itemId = ascii(list, item, 4);
+                    int itemLength = list.getInt(item + 4);
+                    if(itemLength < 0 || item + 8 + itemLength > list.limit())
+                        break;
+
+                    String value = decode(list, item + 8, terminator(list, item + 8, 0) - item - 8, 3).trim();
+                    switch(itemId) {
+                        case "INAM" -> putTag(result, "title", value);
+                        case "IART" -> putTag(result, "artist", value);
+                        case "IPRD" -> putTag(result, "album", value);
+                        case "IGNR" -> putTag(result, "genre", value);
+                        default -> {}
+                    }
+
+                    item += 8 + itemLength + (itemLength & 1);
+                }
+            }
+
+            pos += 8 + length + (length & 1); // Chunks are padded to an even length
+        }
+    }
+//#endregion WAV
+
+//#region Helpers
+    private static void putTag(Reading result, String name, String value) {
+        if(value != null && !value.isEmpty())
+            result.tags.putIfAbsent(name, value);
+    }
+
+    // Keeps the first picture it sees, unless a front cover comes along later
+    private static void offerCover(Reading result, byte[] image, int pictureType) {
+        if(image.length == 0 || result.hasFrontCover)
+            return;
+
+        if(result.coverArt == null || pictureType == PICTURE_FRONT_COVER) {
+            result.coverArt = image;
+            result.hasFrontCover = pictureType == PICTURE_FRONT_COVER;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws Exception {
+        long available = channel.size() - position;
+        length = Math.min(Math.min(length, available), MAX_REGION);
+        if(length <= 0)
+            return ByteBuffer.allocate(0);
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int from, int length) {
+        return data.duplicate().position(from).limit(from + length).slice().order(data.order());
+    }
+
+    private static byte[] bytes(ByteBuffer data, int from, int length) {
+        byte[] out = new byte[Math.max(0, Math.min(length, data.limit() - from))];
+        data.get(from, out);
+        return out;
+    }
+
+    private static boolean matches(ByteBuffer data, int from, String text) {
+        if(from + text.length() > data.limit())
+            return false;
+
+        for(int i = 0; i < text.length(); i++) {
+            if((data.get(from + i) & 0xFF) != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer data, int from, int length) {
+        return new String(bytes(data, from, length), StandardCharsets.ISO_8859_1);
+    }
+
+    private static int syncSafe(ByteBuffer data, int from) {
+        return ((data.get(from) & 0x7F) << 21) | ((data.get(from + 1) & 0x7F) << 14) | ((data.get(from + 2) & 0x7F) << 7) | (data.get(from + 3) & 0x7F);
+    }
+
+    private static boolean isMpegFrame(ByteBuffer head) {
+        return (head.get(0) & 0xFF) == 0xFF && (head.get(1) & 0xE0) == 0xE0;
+    }
+
+    // ID3 text encodings: 0 Latin-1, 1 UTF-16 with a BOM, 2 UTF-16BE, 3 UTF-8
+    private static Charset charset(int encoding) {
+        switch(encoding) {
+            case 1: return StandardCharsets.UTF_16;
+            case 2: return StandardCharsets.UTF_16BE;
+            case 3: return StandardCharsets.UTF_8;
+            default: return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    private static String decode(ByteBuffer data, int from, int length, int encoding) {
+        if(length <= 0)
+            return "";
+        return new String(bytes(data, from, length), charset(encoding));
+    }
+
+    // Index of the null ending a string that starts at from (or the end of the data if there isn't one)
+    private static int terminator(ByteBuffer data, int from, int encoding) {
+        boolean wide = encoding == 1 || encoding == 2;
+        int step = wide ? 2 : 1;
+
+        for(int i = from; i + step <= data.limit(); i += step) {
+            if(data.get(i) == 0 && (!wide || data.get(i + 1) == 0))
+                return i;
+        }
+        return data.limit();
+    }
+//#endregion Helpers
+}
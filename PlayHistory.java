@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// What actually played, as media ids in a fixed-size ring (oldest gets overwritten), with a cursor on the one playing now.
+// Back/forward move the cursor like a browser's history: playing something new drops whatever was ahead of it, but playing
+// what's straight ahead (back, then the track ends or next is pressed) just moves forward without losing anything.
+// Nothing allocates once it's made. Saved as a small binary file (see save) so previous still works after a restart.
+// Not thread safe, MusicPlayer only uses it from the playback thread (saving happens on its own thread, see save)
+public class PlayHistory {
+    public static final int NONE = -1;
+    private static final int MAGIC = 0x4D4D5048; // "MMPH"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16; // magic, version, count, cursor
+
+    private final int[] ids;
+    private int oldest; // Where the oldest entry is in ids
+    private int count;
+    private int cursor = -1; // 0 = oldest, count - 1 = newest
+
+    // save fills pending and the writer thread swaps it with writing, so neither ever waits on the other's copy or the disk
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private boolean dirty; // pending has something writing hasn't written yet. This and pending are guarded by this
+    private final Object writeLock = new Object(); // One write at a time (the writer thread or flush)
+    private volatile Path file;
+    private volatile Path temp;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "history-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PlayHistory(int capacity) {
+        ids = new int[capacity];
+        pending = ByteBuffer.allocate(HEADER_BYTES + capacity * Integer.BYTES);
+        writing = ByteBuffer.allocate(pending.capacity());
+    }
+
+    private int at(int position) {
+        return ids[(oldest + position) % ids.length];
+    }
+
+    // Called for everything that starts playing. False if it was already where the cursor is (went back/forward to it, repeat)
+    public boolean played(int id) {
+        if(cursor >= 0 && at(cursor) == id)
+            return false;
+
+        if(cursor + 1 < count && at(cursor + 1) == id) {
+            cursor++; // The one we went back from
+            return true;
+        }
+
+        count = cursor + 1; // Anything ahead of the cursor is somewhere we're not going anymore
+        if(count == ids.length) {
+            oldest = (oldest + 1) % ids.length;
+            count--;
+        }
+        ids[(oldest + count) % ids.length] = id;
+        count++;
+        cursor = count - 1;
+        return true;
+    }
+
+    // Moves the cursor back one and returns that id, NONE if there's nothing before it
+    public int back() {
+        if(cursor <= 0)
+            return NONE;
+        return at(--cursor);
+    }
+
+    public int forward() {
+        if(cursor + 1 >= count)
+            return NONE;
+        return at(++cursor);
+    }
+
+    // What forward would return, without moving
+    public int peekForward() {
+        return cursor + 1 < count ? at(cursor + 1) : NONE;
+    }
+
+    public int current() {
+        return cursor >= 0 ? at(cursor) : NONE;
+    }
+
+    public int size() {
+        return count;
+    }
+
+//#region Saving
+    // Reads whatever was saved at file (starting empty if it's missing or not ours), and saves there from now on.
+    // Keeps the newest entries if the file's from a bigger history
+    public void load(Path file) {
+        this.file = file;
+        temp = file.resolveSibling(file.getFileName() + ".tmp");
+        oldest = 0;
+        count = 0;
+        cursor = -1;
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header);
+            header.flip();
+            if(header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION)
+                return;
+
+            int saved = header.getInt();
+            int savedCursor = header.getInt();
+            if(saved < 0 || savedCursor < -1 || savedCursor >= saved)
+                return;
+
+            ByteBuffer entries = ByteBuffer.allocate(saved * Integer.BYTES);
+            while(entries.hasRemaining() && channel.read(entries) > 0);
+            entries.flip();
+            if(entries.remaining() < saved * Integer.BYTES)
+                return; // Cut short
+
+            int skip = Math.max(0, saved - ids.length);
+            entries.position(skip * Integer.BYTES);
+            while(entries.hasRemaining())
+                ids[count++] = entries.getInt();
+            cursor = Math.max(savedCursor - skip, count > 0 ? 0 : -1);
+        } catch (java.nio.file.NoSuchFileException e) {
+            // Nothing played yet
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // magic, version, count, cursor, then the ids oldest first, all 4 byte ints. ~4 KB at the default size, so it just gets
+    // written out whole, to a temp file first so a crash halfway through leaves the old one. Only the copy into pending happens
+    // here, the write is on the history-writer thread, and however many saves pile up while it's busy get written once
+    public void save() {
+        if(file == null)
+            return;
+
+        boolean queue;
+        synchronized(this) {
+            pending.clear();
+            pending.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(cursor);
+            for(int position = 0; position < count; position++)
+                pending.putInt(at(position));
+            pending.flip();
+
+            queue = !dirty; // Otherwise there's a write queued already that hasn't taken pending yet
+            dirty = true;
+        }
+
+        if(queue)
+            writer.execute(this::flush);
+    }
+
+    // Writes whatever the last save left, if it hasn't been already. Blocks, for exiting (MusicPlayer's shutdown hook)
+    public void flush() {
+        synchronized(writeLock) {
+            synchronized(this) {
+                if(!dirty)
+                    return;
+
+                ByteBuffer swap = writing;
+                writing = pending;
+                pending = swap;
+                dirty = false;
+            }
+
+            try {
+                try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while(writing.hasRemaining())
+                        channel.write(writing);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+//#endregion Saving
+}
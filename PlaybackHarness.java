@@ -0,0 +1,306 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+import models.Media;
+import models.PlaybackState;
+
+// Dev only, drives MusicPlayer from the command line without the app around it (no db, no window, the control bar just
+// never gets shown). Every mode exits with 1 on failure so they can run unattended:
+//   PlaybackHarness <maxGapMs> <file> <file> [more files...]
+//     Plays the files back to back and prints how long each switch between them took (previous one finished -> next one
+//     playing). Fails if any took longer than maxGapMs. Needs VLC installed.
+//   PlaybackHarness stress [commands] [threads]
+//     Fires commands (default 10000) at random from several threads (default 4) without any players, while another
+//     thread keeps reading getState(). Fails if any snapshot is inconsistent or one ever goes backwards
+//   PlaybackHarness progress [seconds] [song seconds]
+//     Pretends to be vlc (a report every 250 ms, a little late each time) for a few seconds of a song (3 minutes unless
+//     told otherwise) and prints what PlaybackProgress got onto the control bar each second
+//   PlaybackHarness shuffle [tracks]
+//     Checks ShuffleEngine's draws come out in proportion (chi-squared, before and after changing the queue), that cooldowns
+//     hold, and times draws over a big queue (a million tracks unless told otherwise)
+public class PlaybackHarness {
+    public static void main(String[] args) throws Exception
+    {
+        if(args[0].equals("shuffle")) {
+            shuffleTest(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+
+        SwingUtilities.invokeAndWait(MediaControlBar::new); // Somewhere for PlaybackProgress to put the position
+
+        if(args[0].equals("progress")) {
+            progressTest(args.length > 1 ? Integer.parseInt(args[1]) : 10, (args.length > 2 ? Integer.parseInt(args[2]) : 180) * 1000L);
+            return;
+        }
+        if(args[0].equals("stress")) {
+            stressTest(args.length > 1 ? Integer.parseInt(args[1]) : 10_000, args.length > 2 ? Integer.parseInt(args[2]) : 4);
+            return;
+        }
+
+        long maxGapMs = Long.parseLong(args[0]);
+        List<Media> queue = new ArrayList<>();
+        for(int i = 1; i < args.length; i++)
+        {
+            File file = new File(args[i]);
+            Media song = new Media(file.getAbsolutePath(), file.getName(), MediaAddingMenu.getExtensionOf(file.getName()), "", "");
+            song.durationMs = MediaFileHandler.readDurationMs(song.path);
+            queue.add(song);
+        }
+
+        List<Long> gapNanos = new ArrayList<>();
+        MusicPlayer.transitionListener = gap -> {
+            synchronized(gapNanos) {
+                gapNanos.add(gap);
+                gapNanos.notifyAll();
+            }
+        };
+        MusicPlayer.startPlayers();
+        MusicPlayer.play(queue, 0);
+
+        long totalMs = queue.stream().mapToLong(song -> song.durationMs).sum();
+        long deadline = System.currentTimeMillis() + totalMs + 10_000;
+        synchronized(gapNanos) {
+            while(gapNanos.size() < queue.size() - 1 && System.currentTimeMillis() < deadline)
+                gapNanos.wait(1000);
+        }
+
+        boolean passed;
+        synchronized(gapNanos) {
+            passed = gapNanos.size() == queue.size() - 1;
+            for(int i = 0; i < gapNanos.size(); i++)
+            {
+                double gapMs = gapNanos.get(i) / 1_000_000.0;
+                System.out.printf("%s -> %s: %.2f ms%n", queue.get(i).name, queue.get(i + 1).name, gapMs);
+                passed &= gapMs <= maxGapMs;
+            }
+            if(gapNanos.size() < queue.size() - 1)
+                System.out.println("Only " + gapNanos.size() + " of " + (queue.size() - 1) + " switches happened before timing out");
+        }
+
+        MusicPlayer.togglePaused(); // Quiet while it exits
+        MusicPlayer.awaitIdle();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void stressTest(int commandCount, int threadCount) throws Exception
+    {
+        List<List<Media>> queues = new ArrayList<>();
+        for(int size : new int[] { 1, 3, 10, 50 })
+        {
+            List<Media> queue = new ArrayList<>();
+            for(int i = 0; i < size; i++)
+            {
+                Media song = new Media(size * 100 + i + 1, "/stress/" + size + "/" + i + ".mp3", "Song " + i, "mp3", "", "", 0);
+                song.durationMs = 180_000; // So nothing goes looking for the file
+                queue.add(song);
+            }
+            queues.add(queue);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        List<String> problems = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            long lastVersion = -1;
+            long reads = 0;
+            while(!done.get())
+            {
+                PlaybackState snapshot = MusicPlayer.getState();
+                reads++;
+                if(!snapshot.isConsistent() || snapshot.version < lastVersion) {
+                    synchronized(problems) {
+                        problems.add("bad snapshot at version " + snapshot.version + " (last " + lastVersion + ")");
+                    }
+                }
+                lastVersion = snapshot.version;
+            }
+            System.out.println(reads + " snapshots read");
+        }, "stress-reader");
+        reader.start();
+
+        long start = System.nanoTime();
+        List<Thread> writers = new ArrayList<>();
+        for(int t = 0; t < threadCount; t++)
+        {
+            int seed = t;
+            int count = commandCount / threadCount + (t < commandCount % threadCount ? 1 : 0);
+            Thread writer = new Thread(() -> {
+                Random random = new Random(seed);
+                for(int i = 0; i < count; i++)
+                {
+                    List<Media> queue = queues.get(random.nextInt(queues.size()));
+                    switch(random.nextInt(9)) {
+                        case 0 -> MusicPlayer.play(queue, random.nextInt(queue.size()));
+                        case 1 -> MusicPlayer.getPlaylist(random.nextInt(10) == 0 ? List.of() : queue); // Emptied playlists too
+                        case 2 -> MusicPlayer.playNext();
+                        case 3 -> MusicPlayer.playPrevious();
+                        case 4 -> MusicPlayer.togglePaused();
+                        case 5 -> MusicPlayer.toggleShuffling();
+                        case 6 -> MusicPlayer.toggleRepeating();
+                        case 7 -> MusicPlayer.toggleMuted();
+                        default -> MusicPlayer.setProgress(random.nextInt(180_000));
+                    }
+                }
+            }, "stress-" + t);
+            writers.add(writer);
+            writer.start();
+        }
+        for(Thread writer : writers)
+            writer.join();
+
+        MusicPlayer.awaitIdle();
+        done.set(true);
+        reader.join();
+
+        PlaybackState last = MusicPlayer.getState();
+        if(!last.isConsistent())
+            problems.add("final state inconsistent");
+        System.out.printf("%d commands from %d threads in %d ms, %d state changes%n", commandCount, threadCount, (System.nanoTime() - start) / 1_000_000, last.version);
+        problems.stream().limit(10).forEach(System.out::println);
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+
+    private static void progressTest(int seconds, long lengthMs) throws Exception
+    {
+        SwingUtilities.invokeAndWait(() -> {
+            MediaControlBar.musicProgress.setSize(275, 20); // What it gets laid out at in the window
+            MediaControlBar.musicProgress.doLayout();
+        });
+        PlaybackProgress.newSong(lengthMs);
+
+        long start = System.nanoTime();
+        long[] last = PlaybackProgress.counters();
+        long nextReport = 0;
+        for(int second = 1; second <= seconds; second++) {
+            while(nextReport < second * 1000L) {
+                long due = start + nextReport * 1_000_000;
+                Thread.sleep(Math.max(0, (due - System.nanoTime()) / 1_000_000));
+                PlaybackProgress.timeChanged(nextReport - (long)(Math.random() * 30), true);
+                nextReport += 250;
+            }
+            Thread.sleep(Math.max(0, (start + second * 1_000_000_000L - System.nanoTime()) / 1_000_000));
+
+            long[] now = PlaybackProgress.counters();
+            System.out.printf("second %d: %d reports, %d EDT updates, %d thumb moves, %d label changes%n",
+                second, now[0] - last[0], now[1] - last[1], now[2] - last[2], now[3] - last[3]);
+            last = now;
+        }
+        System.out.println(PlaybackProgress.describeMetrics());
+        System.exit(0);
+    }
+
+    private static void shuffleTest(int benchmarkSize)
+    {
+        SplittableRandom setup = new SplittableRandom(42);
+        boolean passed = true;
+
+        // Draws vs weights, cooldowns off so they're the only thing deciding
+        List<Media> queue = shuffleTracks(1, 50, setup, false);
+        ShuffleEngine engine = new ShuffleEngine(1);
+        engine.setDefaultCooldown(0);
+        engine.setQueue(queue);
+        passed &= checkDistribution("fresh table", engine, queue, 2_000_000);
+
+        List<Media> changed = new ArrayList<>(queue.subList(10, queue.size())); // 10 tombstones
+        changed.addAll(shuffleTracks(1000, 15, setup, false)); // 15 in the overflow
+        Media reweighted = new Media(queue.get(20).id, queue.get(20).path, "", "mp3", "", "");
+        reweighted.probability = 25;
+        changed.set(10, reweighted);
+        engine.setQueue(changed);
+        passed &= checkDistribution("after queue changes", engine, changed, 2_000_000);
+
+        // Cooldowns, mixed repeatability + the default for the rest
+        List<Media> cooling = shuffleTracks(1, 200, setup, true);
+        ShuffleEngine cooled = new ShuffleEngine(2);
+        cooled.setQueue(cooling);
+        Map<Media, Long> lastSeen = new HashMap<>();
+        int violations = 0;
+        for(long play = 1; play <= 1_000_000; play++) {
+            Media media = cooled.next();
+            Long last = lastSeen.put(media, play);
+            int cooldown = Math.min(media.repeatability > 0 ? media.repeatability : cooling.size() / 2, cooling.size() - 1);
+            if(last != null && play - last - 1 < cooldown)
+                violations++;
+            cooled.played(media);
+        }
+        System.out.printf("cooldowns: %d of 1000000 plays came back too early%n", violations);
+        passed &= violations == 0;
+
+        // Throughput
+        List<Media> big = shuffleTracks(1, benchmarkSize, setup, false);
+        ShuffleEngine bench = new ShuffleEngine(3);
+        bench.setDefaultCooldown(0);
+        long start = System.nanoTime();
+        bench.setQueue(big);
+        bench.next(); // Builds the table
+        System.out.printf("%d tracks: table built in %d ms%n", benchmarkSize, (System.nanoTime() - start) / 1_000_000);
+
+        int draws = 10_000_000;
+        long checksum = 0;
+        for(int warmup = 0; warmup < 2; warmup++) {
+            start = System.nanoTime();
+            for(int i = 0; i < draws; i++)
+                checksum += bench.next().id;
+        }
+        System.out.printf("  %.1f ns/draw, no cooldowns%n", (System.nanoTime() - start) / (double)draws);
+
+        bench.setDefaultCooldown(-1);
+        start = System.nanoTime();
+        for(int i = 0; i < draws; i++) {
+            Media media = bench.next();
+            bench.played(media);
+            checksum += media.id;
+        }
+        System.out.printf("  %.1f ns/draw + played, half the queue cooling down%n", (System.nanoTime() - start) / (double)draws);
+
+        List<Media> edited = new ArrayList<>(big.subList(1000, big.size()));
+        edited.addAll(shuffleTracks(benchmarkSize + 1, 1000, setup, false));
+        start = System.nanoTime();
+        bench.setQueue(edited);
+        long applied = System.nanoTime() - start;
+        bench.next();
+        System.out.printf("  1000 removed + 1000 added: %d ms to apply, %d ms including the next draw (%d)%n",
+            applied / 1_000_000, (System.nanoTime() - start) / 1_000_000, checksum % 10);
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static List<Media> shuffleTracks(int firstId, int count, SplittableRandom random, boolean withRepeatability) {
+        List<Media> tracks = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            Media media = new Media(firstId + i, "/shuffle/" + (firstId + i) + ".mp3", "", "mp3", "", "");
+            media.probability = 0.1 + random.nextDouble() * 10;
+            if(withRepeatability && random.nextInt(4) == 0)
+                media.repeatability = random.nextInt(150);
+            tracks.add(media);
+        }
+        return tracks;
+    }
+
+    private static boolean checkDistribution(String label, ShuffleEngine engine, List<Media> queue, int draws) {
+        Map<Media, Integer> counts = new HashMap<>();
+        for(int i = 0; i < draws; i++)
+            counts.merge(engine.next(), 1, Integer::sum);
+
+        double total = queue.stream().mapToDouble(media -> media.probability).sum();
+        double chiSquared = 0;
+        for(Media media : queue) {
+            double expected = draws * media.probability / total;
+            double difference = counts.getOrDefault(media, 0) - expected;
+            chiSquared += difference * difference / expected;
+        }
+
+        int freedom = queue.size() - 1;
+        double limit = freedom + 5 * Math.sqrt(2 * freedom); // Way out in the tail, a correct table basically never gets here
+        boolean strays = counts.size() != queue.size(); // Drew something that isn't in the queue anymore
+        System.out.printf("%s: chi-squared %.1f over %d degrees of freedom (limit %.1f)%s%n", label, chiSquared, freedom, limit, strays ? ", drew removed tracks" : "");
+        return chiSquared < limit && !strays;
+    }
+}
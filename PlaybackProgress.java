@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// Gets the playback position from vlc's thread onto the control bar. vlc only reports the time a few times a second and
+// on its own thread, so each report just replaces the latest Sample (one volatile write, callable from any thread), and
+// the EDT works the position out itself from the last sample + how long it's been since. The EDT only hears about it when
+// something visible will actually change: a one-shot Timer gets set for whenever the thumb next moves a pixel or the
+// label next ticks over a second (never more often than once a frame), and reports only wake it early for seeks/pauses
+public class PlaybackProgress {
+    private static final int FRAME_MS = 16;
+    private static final long MAX_AHEAD_MS = 1000; // Stops guessing if vlc goes quiet (buffering etc.) instead of running off on its own
+    private static final long JUMP_MS = 500; // Report this far off what we'd worked out = seek, show it straight away
+
+    // One report from vlc. Never changed, so whoever reads it sees all of it
+    private static class Sample {
+        final long timeMs;
+        final long sampledAt; // nanoTime
+        final long lengthMs;
+        final boolean playing;
+
+        Sample(long timeMs, long lengthMs, boolean playing) {
+            this.timeMs = timeMs;
+            this.sampledAt = System.nanoTime();
+            this.lengthMs = lengthMs;
+            this.playing = playing;
+        }
+
+        long positionAt(long now) {
+            if(!playing)
+                return timeMs;
+
+            long position = timeMs + Math.min((now - sampledAt) / 1_000_000, MAX_AHEAD_MS);
+            return lengthMs > 0 ? Math.min(position, lengthMs) : position;
+        }
+    }
+
+    private static volatile Sample sample = new Sample(0, 0, false);
+    private static final AtomicBoolean tickQueued = new AtomicBoolean();
+
+    private static Timer timer; // Everything from here down is EDT only
+    private static long shownMs = -1;
+
+    private static final AtomicLong reports = new AtomicLong();
+    private static long ticks;
+
+//#region Reports (any thread)
+    public static void newSong(long lengthMs) {
+        sample = new Sample(0, lengthMs, false); // Not moving until vlc says it's actually started
+        SwingUtilities.invokeLater(() -> {
+            shownMs = -1;
+            MediaControlBar.setNewSong(lengthMs);
+            tick();
+        });
+    }
+
+    // vlc's real length once it's opened the file, our duration can be an estimate
+    public static void lengthChanged(long lengthMs) {
+        Sample last = sample;
+        sample = new Sample(last.positionAt(System.nanoTime()), lengthMs, last.playing);
+        SwingUtilities.invokeLater(() -> MediaControlBar.setSongLength(lengthMs));
+    }
+
+    public static void timeChanged(long timeMs, boolean playing) {
+        reports.incrementAndGet();
+        Sample last = sample;
+        sample = new Sample(timeMs, last.lengthMs, playing);
+
+        if(playing != last.playing || Math.abs(timeMs - last.positionAt(System.nanoTime())) > JUMP_MS)
+            queueTick(); // Otherwise the timer's already on it
+    }
+
+    public static void setPaused(boolean paused) {
+        Sample last = sample;
+        sample = new Sample(last.positionAt(System.nanoTime()), last.lengthMs, !paused);
+        queueTick();
+    }
+//#endregion Reports (any thread)
+
+    // However many of these pile up before the EDT gets to them, it only runs once
+    private static void queueTick() {
+        if(tickQueued.compareAndSet(false, true))
+            SwingUtilities.invokeLater(() -> {
+                tickQueued.set(false);
+                tick();
+            });
+    }
+
+    private static void tick() {
+        ticks++;
+        Sample current = sample;
+        long position = current.positionAt(System.nanoTime());
+
+        // vlc's reports are a bit behind where we'd guessed, don't let the label flick back a second for it
+        if(position < shownMs && shownMs - position < JUMP_MS)
+            position = shownMs;
+        shownMs = position;
+
+        MediaControlBar.showProgress(position); // Only repaints/relabels whatever actually changed
+
+        if(timer == null) {
+            timer = new Timer(FRAME_MS, e -> tick());
+            timer.setRepeats(false);
+        }
+        if(!current.playing) {
+            timer.stop();
+            return;
+        }
+
+        long nextSecond = 1000 - position % 1000;
+        double millisPerPixel = MediaControlBar.millisPerPixel();
+        long nextPixel = millisPerPixel > 0 ? (long)Math.ceil(millisPerPixel - position % millisPerPixel) : nextSecond;
+        timer.setInitialDelay((int)Math.max(FRAME_MS, Math.min(nextSecond, nextPixel)));
+        timer.restart();
+    }
+
+//#region Metrics
+    // EDT events we've caused, how many of them moved the thumb or changed the label text (the only time a string gets made)
+    public static String describeMetrics() {
+        long[] counters = counters();
+        return String.format("%d reports from vlc, %d EDT updates, %d thumb moves, %d label changes", counters[0], counters[1], counters[2], counters[3]);
+    }
+
+    // Reads the EDT-only ones from whatever thread, only good enough for metrics
+    static long[] counters() {
+        return new long[] { reports.get(), ticks, MediaControlBar.thumbMoves, MediaControlBar.labelChanges };
+    }
+//#endregion Metrics
+}
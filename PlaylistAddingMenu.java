@@ -3,7 +3,9 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 import java.sql.Blob;
 
 import javax.swing.ImageIcon;
@@ -15,6 +17,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import models.Playlist;
@@ -25,7 +28,9 @@ public class PlaylistAddingMenu {
 
     private static JLabel imageDisplay = new JLabel();
     private static JTextField nameField = new JTextField(20);
-    private static Blob imageBlob;
+    private static Blob imageBlob; // Only holds an image the user just picked, existing thumbnails stay in the db
+    private static boolean imageChanged;
+    private static boolean originalHasImage;
 
     private static int heldIndex;
 
@@ -35,28 +40,24 @@ public class PlaylistAddingMenu {
         heldIndex = index;
         playlistMakingDialog.setTitle("Edit Playlist");
 
-        try {
-            Playlist originalData = Database.findPlaylistById(index);
-
-            imageBlob = originalData.image;
+        AsyncDatabase.onEdt(AsyncDatabase.findPlaylistById(index), originalData -> {
+            originalHasImage = originalData.hasImage;
             nameField.setText(originalData.name);
 
-            if(imageBlob != null)
-                updatePlaylistCover();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+            if(originalHasImage)
+                loadExistingCover(index);
+        });
 
         return dialog;
     }
 
 
     public static JDialog OpenPlaylistCreationMenu(JFrame parent) {
-        try {Database.initialize();} catch (Exception e) {e.printStackTrace();}
-
         nameField.setText("");
 
         imageBlob = null;
+        imageChanged = false;
+        originalHasImage = false;
 
         imageDisplay.setVisible(false);
         imageDisplay.setSize(new Dimension(50, 50));
@@ -131,6 +132,7 @@ public class PlaylistAddingMenu {
             
             try {
                 imageBlob = ImageUtils.bytesToBlob(ImageUtils.getBytesFromFile(chooser.getSelectedFile().getAbsolutePath()));
+                imageChanged = true;
                 // System.out.println(imageBlob);
                 updatePlaylistCover();
             } catch (Exception e) {
@@ -151,6 +153,29 @@ public class PlaylistAddingMenu {
         imageDisplay.setIcon(ImageUtils.resizeImageIcon(new ImageIcon(ImageUtils.bytesToImage(imageBlob)), 200, 200));
     }
 
+    private static void loadExistingCover(int playlistId)
+    {
+        new SwingWorker<BufferedImage,Void>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                return ThumbnailCache.getPlaylistThumbnail(playlistId, 200);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BufferedImage image = get();
+                    if(image != null && !imageChanged) { // Don't stomp on an image they picked while this was loading
+                        imageDisplay.setVisible(true);
+                        imageDisplay.setIcon(new ImageIcon(image));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+
     private static void submit() {
         Playlist info = new Playlist(
             nameField.getText(),
@@ -161,21 +186,26 @@ public class PlaylistAddingMenu {
         
 
         // result = info;
-        try {
-            if(heldIndex == -1)
+        if(heldIndex == -1)
+        {
+            AsyncDatabase.onEdt(AsyncDatabase.createPlaylist(info), id -> {}); // PlaylistsMenu adds it when LibraryRepository says so
+        }
+        else
+        {
+            int playlistId = heldIndex;
+            info.id = playlistId;
+
+            CompletableFuture<Void> saving;
+            if(imageChanged)
             {
-                Database.createPlaylist(info);
-                PlaylistsMenu.instance.Refresh();
+                saving = AsyncDatabase.updatePlaylistDetails(info, playlistId);
             }
             else
             {
-                Database.updatePlaylistDetails(info, heldIndex);
-                SongsMenu.heldPlaylist = info;
-                SongsMenu.instance.Refresh();
+                saving = AsyncDatabase.renamePlaylist(playlistId, info.name);
             }
-            
-        } catch (Exception e) {
-            e.printStackTrace();
+
+            AsyncDatabase.onEdt(saving, saved -> {}); // The playlist's SongsMenu updates its header off the LibraryRepository change
         }
 
         playlistMakingDialog.dispose();
@@ -185,13 +215,12 @@ public class PlaylistAddingMenu {
 
     public static void DeletePlaylist(int playlistId)
     {
-        try{
-            Database.deletePlaylist(playlistId);
+        AsyncDatabase.onEdt(AsyncDatabase.deletePlaylist(playlistId), deleted -> {
             playlistMakingDialog.dispose();
             App.player.nav.OpenPlaylistMenu();
-        } catch(Exception error) {
+        }, error -> {
             //Do nothing, lol
-        }
+        });
     }
 
     public static void OpenConfirmationMenu(String message, Runnable executable)
@@ -2,7 +2,9 @@
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.Graphics;
 // import java.awt.Image;
+import java.awt.image.BufferedImage;
 import java.sql.SQLException;
 
 import javax.swing.BoxLayout;
@@ -13,6 +15,7 @@ import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 
 import models.Playlist;
 
@@ -23,6 +26,10 @@ public class PlaylistItem extends JButton {
     private JLabel playListName;
 
     private ImageIcon originalIcon;
+    Playlist data;
+    private boolean thumbnailRequested;
+
+    private static final int THUMBNAIL_SIZE = 200; // Biggest the cover gets drawn in the grid
 
     private void OpenPlaylist(Playlist data)
     {
@@ -37,8 +44,9 @@ public class PlaylistItem extends JButton {
         setBackground(ColorScheme.SECONDARY_COLOR); //Idk why it's not changing the color
 
         int imageSize = 100;
+        this.data = data;
         
-        originalIcon = new ImageIcon(ImageUtils.bytesToImage(data.image));
+        originalIcon = new ImageIcon("Images/TempSongImage.png"); // Real cover gets swapped in once this is actually on screen (see paintComponent)
         coverImage = new JLabel(ImageUtils.resizeImageIcon(originalIcon, imageSize, imageSize));
         coverImage.setAlignmentX(CENTER_ALIGNMENT);
 
@@ -54,6 +62,42 @@ public class PlaylistItem extends JButton {
         addActionListener(e -> OpenPlaylist(data));
     }
 
+    // Only items that actually get painted (so are on screen) go fetch their thumbnail
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+
+        if(!thumbnailRequested && data.hasImage)
+        {
+            thumbnailRequested = true;
+            LoadThumbnail();
+        }
+    }
+
+    private void LoadThumbnail()
+    {
+        new SwingWorker<BufferedImage,Void>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                return ThumbnailCache.getPlaylistThumbnail(data.id, THUMBNAIL_SIZE);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BufferedImage image = get();
+                    if(image != null) {
+                        originalIcon = new ImageIcon(image);
+                        revalidate();
+                        repaint();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+
     @Override
     public Dimension getPreferredSize() {
         Container parent = getParent();
@@ -0,0 +1,103 @@
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which media ids are in which playlist, kept as one BitSet per playlist (media ids are small and packed, so a bit each is plenty).
+// Lets the UI mark "already in this playlist" for any number of rows without going back to the db.
+// Database keeps it up to date after each of its own writes, playlists only get loaded the first time someone asks about them.
+public class PlaylistMembership {
+    private static final Map<Integer, BitSet> members = new ConcurrentHashMap<>();
+    // One per playlist. A load holds it from its db read until the set is in members, and changes wait for it, so nothing
+    // written in between gets lost under a set that was read before it
+    private static final Map<Integer, Object> locks = new ConcurrentHashMap<>();
+
+    // Blocks on the db the first time a playlist is asked about, so keep it off the EDT unless isLoaded says it's there already
+    public static boolean contains(int playlist, int media) throws Exception {
+        BitSet set = load(playlist);
+        synchronized(set) {
+            return set.get(media);
+        }
+    }
+
+    public static boolean isLoaded(int playlist) {
+        return members.containsKey(playlist);
+    }
+
+    // Only answers from what's already loaded, anything not loaded counts as not in there
+    public static boolean containsLoaded(int playlist, int media) {
+        BitSet set = members.get(playlist);
+        if(set == null)
+            return false;
+
+        synchronized(set) {
+            return set.get(media);
+        }
+    }
+
+    public static BitSet load(int playlist) throws Exception {
+        BitSet set = members.get(playlist);
+        if(set != null)
+            return set;
+
+        synchronized(lockFor(playlist)) {
+            set = members.get(playlist);
+            if(set != null)
+                return set; // Someone else loaded it while we waited
+
+            BitSet loaded = new BitSet();
+            for(int id : Database.getPlaylistMemberIds(playlist))
+                loaded.set(id);
+
+            members.put(playlist, loaded);
+            return loaded;
+        }
+    }
+
+    private static Object lockFor(int playlist) {
+        return locks.computeIfAbsent(playlist, id -> new Object());
+    }
+
+    static void added(int playlist, int media) {
+        synchronized(lockFor(playlist)) {
+            BitSet set = members.get(playlist);
+            if(set == null)
+                return; // Gets read fresh whenever it's first needed
+
+            synchronized(set) {
+                set.set(media);
+            }
+        }
+    }
+
+    static void removed(int playlist, int media) {
+        synchronized(lockFor(playlist)) {
+            BitSet set = members.get(playlist);
+            if(set == null)
+                return;
+
+            synchronized(set) {
+                set.clear(media);
+            }
+        }
+    }
+
+    static void mediaDeleted(int media) {
+        for(int playlist : locks.keySet()) { // Has every playlist that's loaded or loading
+            synchronized(lockFor(playlist)) {
+                BitSet set = members.get(playlist);
+                if(set == null)
+                    continue;
+
+                synchronized(set) {
+                    set.clear(media);
+                }
+            }
+        }
+    }
+
+    static void forget(int playlist) {
+        synchronized(lockFor(playlist)) {
+            members.remove(playlist);
+        }
+    }
+}
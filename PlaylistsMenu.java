@@ -15,6 +15,8 @@ import javax.swing.SwingConstants;
 import javax.swing.border.EmptyBorder;
 import models.Playlist;
 
+import java.util.function.Consumer;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,6 +28,8 @@ public class PlaylistsMenu extends JPanel {
     private JPanel PlaylistsContainer;
     private List<Playlist> allPlaylists;
     private List<PlaylistItem> allPlaylistItems = new ArrayList<>();
+    private int listGeneration;
+    private final Consumer<LibraryRepository.Change> changeListener = this::OnLibraryChange;
 
     public void Refresh()
     {
@@ -36,21 +40,120 @@ public class PlaylistsMenu extends JPanel {
     }
 
     public void CreatePlaylistItems()
+    {
+        int generation = ++listGeneration;
+
+        if(LibraryRepository.isLoaded())
+        {
+            ShowPlaylists(LibraryRepository.getAllPlaylists());
+            return;
+        }
+
+        AsyncDatabase.onEdt(AsyncDatabase.getAllPlaylists(), playlists -> {
+            if(generation != listGeneration)
+                return; // Got refreshed again while this was loading
+
+            ShowPlaylists(playlists);
+        });
+    }
+
+    private void ShowPlaylists(List<Playlist> playlists)
+    {
+        allPlaylists = new ArrayList<>(playlists);
+        allPlaylistItems.clear();
+
+        for(Playlist song : allPlaylists)
+            AddPlaylistItem(song);
+
+        PlaylistsContainer.revalidate();
+        PlaylistsContainer.repaint();
+    }
+
+    private void AddPlaylistItem(Playlist playlist)
     {
         try {
-            allPlaylists = Database.getAllPlaylists();
-
-            for(Playlist song : allPlaylists)
-            {
-                PlaylistItem newListItem = new PlaylistItem(song);
-                allPlaylistItems.add((PlaylistItem) newListItem);
-                PlaylistsContainer.add(newListItem);
-                newListItem.setOpaque(false);
-            }
+            PlaylistItem newListItem = new PlaylistItem(playlist);
+            allPlaylistItems.add(newListItem);
+            PlaylistsContainer.add(newListItem);
+            newListItem.setOpaque(false);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    // Patches just the playlists that changed
+    private void OnLibraryChange(LibraryRepository.Change change)
+    {
+        if(change.kind != LibraryRepository.Kind.PLAYLISTS || allPlaylists == null)
+            return;
+
+        for(int id : change.removed)
+            RemovePlaylistItem(id);
+
+        for(int id : change.updated)
+        {
+            int index = IndexOfPlaylist(id);
+            if(index < 0)
+                continue;
+
+            try {
+                PlaylistItem replacement = new PlaylistItem(change.playlists.get(id));
+                replacement.setOpaque(false);
+                PlaylistsContainer.remove(allPlaylistItems.get(index));
+                PlaylistsContainer.add(replacement, index);
+                allPlaylistItems.set(index, replacement);
+                allPlaylists.set(index, replacement.data);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        for(int id : change.added)
+        {
+            if(IndexOfPlaylist(id) >= 0)
+                continue;
+
+            allPlaylists.add(change.playlists.get(id));
+            AddPlaylistItem(change.playlists.get(id));
+        }
+
+        PlaylistsContainer.revalidate();
+        PlaylistsContainer.repaint();
+    }
+
+    private int IndexOfPlaylist(int id)
+    {
+        for(int i = 0; i < allPlaylistItems.size(); i++)
+        {
+            if(allPlaylistItems.get(i).data.id == id)
+                return i;
+        }
+        return -1;
+    }
+
+    private void RemovePlaylistItem(int id)
+    {
+        int index = IndexOfPlaylist(id);
+        if(index < 0)
+            return;
+
+        PlaylistsContainer.remove(allPlaylistItems.remove(index));
+        allPlaylists.remove(index);
+    }
+
+    @Override
+    public void addNotify()
+    {
+        super.addNotify();
+        LibraryRepository.addListener(changeListener);
+    }
+
+    @Override
+    public void removeNotify()
+    {
+        LibraryRepository.removeListener(changeListener);
+        super.removeNotify();
+    }
     
     private void OpenPlaylistCreator() {
         JDialog dialog = PlaylistAddingMenu.OpenPlaylistCreationMenu(App.player);
@@ -0,0 +1,289 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import models.Media;
+
+// Picks what plays next while shuffling. Each track comes up in proportion to its probability (playlist_media.probability),
+// drawn in O(1) from a Walker alias table, and once it's played it sits out until `repeatability` other tracks have played
+// (or half the queue, for tracks that don't set one). Tracks on cooldown just get drawn again, which keeps everything else
+// in proportion. Queue changes don't rebuild anything straight away: removed tracks stay in the table as tombstones that
+// get skipped, and new ones go in a small overflow list drawn from linearly. The table only gets rebuilt once either
+// of those has grown enough to slow draws down. Not thread safe, MusicPlayer only uses it from the playback thread
+public class ShuffleEngine {
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final int MAX_TRIES = 32; // Then just look through everything that's allowed to play
+    private static final int MIN_OVERFLOW = 256;
+
+    // One slot per track. Slots [0, tableSize) are in the alias table, [tableSize, count) are the overflow
+    private Media[] slots = new Media[16];
+    private double[] weights = new double[16];
+    private int[] cooldowns = new int[16];
+    private long[] lastPlayed = new long[16]; // What plays was when it last played
+    private boolean[] removed = new boolean[16];
+    private int count;
+    private int removedCount;
+    private final Map<Media, Integer> slotOf = new HashMap<>();
+
+    private double[] chance = new double[0];
+    private int[] alias = new int[0];
+    private int tableSize;
+    private double tableWeight; // Tombstones included, they get drawn and skipped
+    private double overflowWeight;
+
+    private long plays;
+    private int defaultCooldown = -1; // -1 = half the queue
+    private List<Media> queue; // What setQueue last saw, so being handed the same list again is free
+    private final SplittableRandom random;
+
+    public ShuffleEngine() {
+        random = new SplittableRandom();
+    }
+
+    public ShuffleEngine(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    // For tracks with repeatability 0. -1 = half the queue
+    public void setDefaultCooldown(int tracks) {
+        defaultCooldown = tracks;
+    }
+
+    public int size() {
+        return count - removedCount;
+    }
+
+//#region Queue
+    // Works out what was added/removed/reweighted since last time instead of starting over, so tracks keep their cooldowns
+    public void setQueue(List<Media> queue) {
+        if(queue == this.queue)
+            return;
+        this.queue = queue;
+
+        Set<Media> keep = new HashSet<>(queue);
+        for(int slot = 0; slot < count; slot++) {
+            if(!removed[slot] && !keep.contains(slots[slot]))
+                removeSlot(slot);
+        }
+
+        for(Media media : queue) {
+            Integer slot = slotOf.get(media);
+            if(slot == null) {
+                addSlot(media, NEVER);
+            } else if(weightOf(media) != weights[slot] || media.repeatability != cooldowns[slot]) {
+                long played = lastPlayed[slot];
+                removeSlot(slot);
+                addSlot(media, played);
+            } else {
+                slots[slot] = media; // Same song, but keep the newest copy of it
+            }
+        }
+    }
+
+    public void add(Media media) {
+        queue = null;
+        if(!slotOf.containsKey(media))
+            addSlot(media, NEVER);
+    }
+
+    public void remove(Media media) {
+        queue = null;
+        Integer slot = slotOf.get(media);
+        if(slot != null)
+            removeSlot(slot);
+    }
+
+    private void addSlot(Media media, long played) {
+        if(count == slots.length) {
+            int capacity = count + (count >> 1) + 16;
+            slots = Arrays.copyOf(slots, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+            cooldowns = Arrays.copyOf(cooldowns, capacity);
+            lastPlayed = Arrays.copyOf(lastPlayed, capacity);
+            removed = Arrays.copyOf(removed, capacity);
+        }
+
+        slots[count] = media;
+        weights[count] = weightOf(media);
+        cooldowns[count] = media.repeatability;
+        lastPlayed[count] = played;
+        removed[count] = false;
+        slotOf.put(media, count);
+        overflowWeight += weights[count];
+        count++;
+    }
+
+    private void removeSlot(int slot) {
+        removed[slot] = true;
+        removedCount++;
+        slotOf.remove(slots[slot]);
+        slots[slot] = null;
+    }
+
+    private static double weightOf(Media media) {
+        return media.probability > 0 && Double.isFinite(media.probability) ? media.probability : 0;
+    }
+//#endregion Queue
+
+    // Starts its cooldown. Call it for everything that plays, picked by us or not
+    public void played(Media media) {
+        plays++;
+        Integer slot = slotOf.get(media);
+        if(slot != null)
+            lastPlayed[slot] = plays;
+    }
+
+    // Null if the queue's empty
+    public Media next() {
+        if(size() == 0)
+            return null;
+
+        if(removedCount * 2 > count || count - tableSize > Math.max(MIN_OVERFLOW, (int)Math.sqrt(count)))
+            rebuild();
+
+        double total = tableWeight + overflowWeight;
+        if(total > 0) {
+            for(int tries = 0; tries < MAX_TRIES; tries++) {
+                double pick = random.nextDouble() * total;
+                int slot = pick < tableWeight ? drawFromTable() : drawFromOverflow(pick - tableWeight);
+                Media media = slot >= 0 ? slots[slot] : null; // null = tombstone
+                if(media != null && !coolingDown(slot))
+                    return media;
+            }
+        }
+
+        return slots[drawByScanning()];
+    }
+
+    // Never lands on a probability 0 track, their column always goes to the alias
+    private int drawFromTable() {
+        int column = random.nextInt(tableSize);
+        return random.nextDouble() < chance[column] ? column : alias[column];
+    }
+
+    private int drawFromOverflow(double pick) {
+        int last = -1;
+        for(int slot = tableSize; slot < count; slot++) {
+            if(weights[slot] <= 0)
+                continue;
+
+            last = slot;
+            pick -= weights[slot];
+            if(pick < 0)
+                return slot;
+        }
+        return last; // Rounding
+    }
+
+    private boolean coolingDown(int slot) {
+        if(lastPlayed[slot] == NEVER)
+            return false;
+
+        int cooldown = cooldowns[slot] > 0 ? cooldowns[slot] : (defaultCooldown >= 0 ? defaultCooldown : size() / 2);
+        return plays - lastPlayed[slot] < Math.min(cooldown, size() - 1); // Always lets something play
+    }
+
+    // Most of the queue is cooling down (or everything left has probability 0). Weighted over whatever's allowed,
+    // and if nothing is, whichever track has been waiting longest
+    private int drawByScanning() {
+        double allowed = 0;
+        for(int slot = 0; slot < count; slot++) {
+            if(!removed[slot] && !coolingDown(slot))
+                allowed += weights[slot];
+        }
+
+        if(allowed > 0) {
+            double pick = random.nextDouble() * allowed;
+            int last = -1;
+            for(int slot = 0; slot < count; slot++) {
+                if(removed[slot] || weights[slot] <= 0 || coolingDown(slot))
+                    continue;
+
+                last = slot;
+                pick -= weights[slot];
+                if(pick < 0)
+                    return slot;
+            }
+            return last;
+        }
+
+        int oldest = -1;
+        for(int slot = 0; slot < count; slot++) {
+            if(!removed[slot] && (oldest < 0 || lastPlayed[slot] < lastPlayed[oldest]))
+                oldest = slot;
+        }
+        return oldest;
+    }
+
+    // Drops the tombstones, pulls the overflow in and builds the alias table again (Vose's version, O(n))
+    private void rebuild() {
+        int live = 0;
+        for(int slot = 0; slot < count; slot++) {
+            if(removed[slot])
+                continue;
+
+            if(slot != live) {
+                slots[live] = slots[slot];
+                weights[live] = weights[slot];
+                cooldowns[live] = cooldowns[slot];
+                lastPlayed[live] = lastPlayed[slot];
+                removed[live] = false;
+                slotOf.put(slots[live], live);
+            }
+            live++;
+        }
+        Arrays.fill(slots, live, count, null);
+        count = live;
+        removedCount = 0;
+
+        double total = 0;
+        for(int slot = 0; slot < count; slot++)
+            total += weights[slot];
+
+        if(chance.length < count) {
+            chance = new double[slots.length];
+            alias = new int[slots.length];
+        }
+        tableSize = count;
+        tableWeight = total;
+        overflowWeight = 0;
+        if(total <= 0)
+            return; // Nothing to draw from, next() scans instead
+
+        // Every column starts as its weight scaled so the average is 1. Short ones get topped up to 1 by a tall one
+        // (their alias), which then counts as however much it has left. chance holds the scaled weight until it's final
+        int[] small = new int[count];
+        int[] large = new int[count];
+        int smallCount = 0;
+        int largeCount = 0;
+        for(int slot = 0; slot < count; slot++) {
+            chance[slot] = weights[slot] * count / total;
+            alias[slot] = slot;
+            if(chance[slot] < 1)
+                small[smallCount++] = slot;
+            else
+                large[largeCount++] = slot;
+        }
+
+        while(smallCount > 0 && largeCount > 0) {
+            int shortColumn = small[--smallCount];
+            int tallColumn = large[--largeCount];
+            alias[shortColumn] = tallColumn;
+            chance[tallColumn] += chance[shortColumn] - 1;
+            if(chance[tallColumn] < 1)
+                small[smallCount++] = tallColumn;
+            else
+                large[largeCount++] = tallColumn;
+        }
+
+        // Whatever's left is 1 give or take rounding
+        while(largeCount > 0)
+            chance[large[--largeCount]] = 1;
+        while(smallCount > 0)
+            chance[small[--smallCount]] = 1;
+    }
+}
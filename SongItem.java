@@ -18,7 +18,6 @@ import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.OverlayLayout;
 import javax.swing.SwingConstants;
-import javax.swing.SwingWorker;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.MatteBorder;
 
@@ -43,6 +42,9 @@ public class SongItem extends JPanel {
     private JMenuItem deleteMedia;
 
     private int listIndex;
+    public final Media media;
+    private ExtractionScheduler.Request extraction; // Only while on (or near) the screen
+    private boolean extracted;
 
 
     private void OpenContextMenu(int heldIndex)
@@ -69,6 +71,7 @@ public class SongItem extends JPanel {
         // System.out.println(data.id);
 
         listIndex = index;
+        media = data;
         
         //Image part
         coverContainer = new JPanel();
@@ -77,61 +80,6 @@ public class SongItem extends JPanel {
         
         songImage = new JLabel(ImageUtils.getResizedImage("Images/TempSongImage.png", 40)); //used to be new ImageIcon("TempSongImage.png") Just tested and this func doesn't seem to work, lol. I'll look through it again in a sec
         
-        new SwingWorker<ImageIcon,Void>() {
-
-            @Override
-            protected ImageIcon doInBackground() throws Exception {
-                try {
-                    byte[] coverBytes = MediaFileHandler.extractCoverArt(data.path);
-                    
-
-                    int songSeconds = (int)MediaFileHandler.getDuration(data.path);
-
-                    int seconds = songSeconds % 60;
-                    var secondText = "";
-
-                    if(seconds < 10)
-                        secondText = "0" + String.valueOf(seconds);
-                    else
-                        secondText = String.valueOf(seconds);
-                    
-                    var minutes = (songSeconds - seconds) / 60;
-                    songLength.setText(String.valueOf(minutes) + ":" + secondText);
-
-
-                    if(coverBytes != null)
-                    {
-                        BufferedImage image = ImageUtils.bytesToImage(coverBytes);
-                        
-                        // System.out.println(coverBytes.length);
-                        if(image != null) {
-                            ImageIcon icon = new ImageIcon(image);
-                            return (ImageUtils.resizeImageIcon(icon, 40));
-                        }
-                    }
-                    // var originalIcon = new ImageIcon(ImageUtils.bytesToImage(MediaFileHandler.extractCoverArt(data.path)));
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-                return null; //nulls get ignored later, so we can chill with this
-            }
-
-            @Override
-            protected void done() {
-                try {
-                    ImageIcon icon = get();
-                    if(icon != null) {
-                        songImage.setIcon(icon);
-                        songImage.revalidate();
-                        songImage.repaint();
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }.execute();
         
 
         songImage.setAlignmentX(.5f);
@@ -199,7 +147,7 @@ public class SongItem extends JPanel {
         endSongDetails.setBorder(new EmptyBorder(2, 0, 0, 10));
         endSongDetails.setPreferredSize(new Dimension(25, 45));
 
-        songLength = new JLabel("00:00");
+        songLength = new JLabel(formatDuration(data.durationMs));
 
         songOptions = new JButton(ImageUtils.getResizedImage("Images/TresDots.png",11,15));
         songOptions.setPreferredSize(new Dimension(10, 40));
@@ -247,25 +195,105 @@ public class SongItem extends JPanel {
         dialog.setVisible(true);
     }
 
+    // Both hide the row straight away, SongsMenu takes it out for good once the change comes back through LibraryRepository.
+    // If the db write fails it comes back
     public void RemoveSongFromPlaylist(Media media)
     {
-        try{
-            Database.removeFromPlaylist(media.id, SongsMenu.heldPlaylist.id);
-            SongsMenu.instance.Refresh();
-        } catch(Exception error) {
-            //Do nothing, lol
-        }
+        setVisible(false);
+        AsyncDatabase.onEdt(AsyncDatabase.removeFromPlaylist(media.id, SongsMenu.heldPlaylist.id), removed -> {}, this::RestoreRow);
     }
 
     public void DeleteSong(Media media)
     {
-        // System.out.println("delete something");
+        setVisible(false);
+        AsyncDatabase.onEdt(AsyncDatabase.deleteMedia(media.id), deleted -> {}, this::RestoreRow);
+    }
+
+    private void RestoreRow(Throwable error)
+    {
+        error.printStackTrace();
+        setVisible(true);
+    }
+
+    static String formatDuration(long durationMs)
+    {
+        long songSeconds = durationMs / 1000;
+        long seconds = songSeconds % 60;
+        return (songSeconds / 60) + ":" + (seconds < 10 ? "0" : "") + seconds;
+    }
+
+    // SongsMenu calls this as the list scrolls, null meaning well off screen.
+    // Duration etc. come straight from the db. The file only gets touched if it changed since it was last read
+    // (the saved version then comes back through LibraryRepository and replaces this row), or for the cover image
+    public void setOnScreen(ExtractionScheduler.Priority priority)
+    {
+        if(extracted)
+            return;
+
+        if(priority == null)
+        {
+            CancelExtraction();
+            return;
+        }
+
+        if(extraction != null)
+        {
+            extraction.setPriority(priority);
+            return;
+        }
+
+        extraction = ExtractionScheduler.submit("row", media.path, priority, () -> ReadFile(media), icon -> {
+            extraction = null;
+            extracted = true;
+            if(icon != null) {
+                songImage.setIcon(icon);
+                songImage.revalidate();
+                songImage.repaint();
+            }
+        });
+    }
+
+    private void CancelExtraction()
+    {
+        if(extraction != null)
+        {
+            extraction.cancel();
+            extraction = null;
+        }
+    }
 
-        try{
-            Database.deleteMedia(media.id);
-        } catch(Exception error) {
-            //Do nothing, lol
+    // Runs on one of ExtractionScheduler's threads
+    private static ImageIcon ReadFile(Media data) throws Exception
+    {
+        if(data.readPending)
+            return null; // LibraryScanner hasn't read it yet and will, tags and all. The row gets replaced once it has
+
+        if(MediaFileHandler.needsTechnicalMetadata(data))
+        {
+            Media probed = new Media(data.id, data.path, data.name, data.format, data.author, data.album, data.addedAt);
+            if(MediaFileHandler.readTechnicalMetadata(probed))
+                Database.updateTechnicalMetadata(probed);
+            return null;
         }
+
+        BufferedImage cover = CoverArtCache.getCover(data, 40); // Already the right size, straight off the disk after the first time
+        if(cover != null)
+            return new ImageIcon(cover);
+
+        return null; //nulls get ignored later, so we can chill with this
+    }
+
+    @Override
+    public void removeNotify()
+    {
+        CancelExtraction(); // Thrown out (or about to be re-added, in which case SongsMenu asks again)
+        super.removeNotify();
+    }
+
+    // The list got reordered under us (drag and drop in a playlist)
+    public void setListIndex(int index)
+    {
+        listIndex = index;
     }
 
     public void playSong(Media media)
@@ -273,12 +301,7 @@ public class SongItem extends JPanel {
         // if(SongsMenu.heldPlaylist == null)
         //     MusicPlayer.getPlaylist(SongsMenu.allSongs);
 
-        MusicPlayer.currentTrackIndex = listIndex;
-
-        MusicPlayer.getPlaylist(SongsMenu.allSongs);
-
-        
-        MusicPlayer.playTrack(media);
+        MusicPlayer.play(SongsMenu.allSongs, listIndex);
     }
 
     @Override
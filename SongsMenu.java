@@ -1,7 +1,14 @@
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.awt.Cursor;
 import java.awt.Font;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -9,17 +16,29 @@ import javax.swing.ImageIcon;
 // import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JDialog;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 // import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
+import javax.swing.border.MatteBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import models.Media;
 import models.Playlist;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class SongsMenu extends JPanel {
     public static SongsMenu instance;
@@ -32,10 +51,36 @@ public class SongsMenu extends JPanel {
 
     public static Playlist heldPlaylist = null;
 
+    private static final Database.MediaSort LIBRARY_SORT = Database.MediaSort.DATE_ADDED;
+    private static final int PAGE_SIZE = 100;
+    private static final int LOAD_MORE_DISTANCE = 600; // px from the bottom of the list before the next page gets loaded
+    private static final int SEARCH_LIMIT = 200;
+    private static final int SEARCH_DELAY_MS = 150;
+    private static final int PLAYLIST_ICON_SIZE = 50;
+    private JTextField searchField;
+    private Timer searchDelay;
+    private Media lastLoadedSong;
+    private boolean hasMorePages;
+    private boolean loadingPage;
+    private int listGeneration; // Bumped every time the list gets rebuilt
+    private SongItem draggedItem;
+    private SongItem dropMarkedItem;
+    private final Set<Integer> localMoves = new HashSet<>(); // Moves we made ourselves, so their change events don't reload the list
+    private final Consumer<LibraryRepository.Change> changeListener = this::OnLibraryChange;
+    private JLabel playListIcon;
+    private JLabel playlistTitle;
+    private JScrollPane songScroll;
+    private final Set<SongItem> scheduledRows = new HashSet<>(); // Rows that currently have file reading queued through ExtractionScheduler
+    private boolean visibilityUpdateQueued;
+
     public void Refresh()
     {
         MusicListContainer.removeAll();
-        CreateMediaList();
+
+        if(searchField != null && !searchField.getText().isBlank())
+            RunSearch();
+        else
+            CreateMediaList();
 
         if(heldPlaylist != null)
         {
@@ -48,36 +93,507 @@ public class SongsMenu extends JPanel {
 
     public void CreateMediaList()
     {
-        try {
-            if(heldPlaylist == null)
-                allSongs = Database.getAllMedia();
-            else
-                allSongs = Database.getMediaInPlaylist(heldPlaylist.id);
-
-            int i = 0;
-            for(Media song : allSongs)
-            {
-                i++;
-                SongItem newListItem = new SongItem(song, i -1);
-                allListedMedia.add((SongItem) newListItem);
-                MusicListContainer.add(newListItem);
-                newListItem.setOpaque(false);
-
-                if(i != allSongs.size())
-                    MusicListContainer.add(Box.createVerticalStrut(2));
-                // MusicListContainer.add(Box.createVerticalGlue());
+        allSongs = new ArrayList<>();
+        allListedMedia.clear();
+        lastLoadedSong = null;
+        hasMorePages = false;
+        loadingPage = false;
+        int generation = ++listGeneration;
+
+        if(heldPlaylist == null)
+        {
+            hasMorePages = true;
+            LoadNextPage();
+        }
+        else
+            AsyncDatabase.onEdt(AsyncDatabase.getMediaInPlaylist(heldPlaylist.id), songs -> ShowSongs(generation, songs));
+    }
+
+    // The library only gets pulled in a page at a time, the rest shows up as you scroll towards the bottom
+    private void LoadNextPage()
+    {
+        if(!hasMorePages || loadingPage)
+            return;
+
+        // Straight out of memory once the library's loaded, no db at all
+        if(LibraryRepository.isLoaded())
+        {
+            List<Media> page = LibraryRepository.getMediaPage(LIBRARY_SORT, lastLoadedSong, PAGE_SIZE);
+            hasMorePages = page.size() == PAGE_SIZE;
+            if(!page.isEmpty())
+                lastLoadedSong = page.get(page.size() - 1);
+
+            ShowSongs(listGeneration, page);
+            return;
+        }
+
+        loadingPage = true;
+        int generation = listGeneration;
+
+        AsyncDatabase.onEdt(AsyncDatabase.getMediaPage(LIBRARY_SORT, lastLoadedSong, PAGE_SIZE), page -> {
+            if(generation != listGeneration)
+                return; // List got rebuilt while this was loading
+
+            loadingPage = false;
+            hasMorePages = page.size() == PAGE_SIZE;
+
+            if(!page.isEmpty())
+                lastLoadedSong = page.get(page.size() - 1);
+
+            ShowSongs(generation, page);
+        }, error -> {
+            loadingPage = false;
+            hasMorePages = false;
+            error.printStackTrace();
+        });
+    }
+
+    // Results come back from the db asynchronously, so anything from before the last rebuild (refresh, new search, ...) gets dropped
+    private void ShowSongs(int generation, List<Media> songs)
+    {
+        if(generation != listGeneration)
+            return;
+
+        AddSongItems(songs);
+        MusicListContainer.revalidate();
+        MusicListContainer.repaint();
+        QueueVisibilityUpdate();
+    }
+
+    private void AddSongItems(List<Media> songs)
+    {
+        for(Media song : songs)
+        {
+            if(!allSongs.isEmpty())
+                MusicListContainer.add(Box.createVerticalStrut(2));
+
+            SongItem newListItem = CreateSongItem(song, allSongs.size());
+            allSongs.add(song);
+            allListedMedia.add(newListItem);
+            MusicListContainer.add(newListItem);
+            // MusicListContainer.add(Box.createVerticalGlue());
+        }
+    }
+
+    private SongItem CreateSongItem(Media song, int index)
+    {
+        SongItem newListItem = new SongItem(song, index);
+        newListItem.setOpaque(false);
+
+        if(heldPlaylist != null)
+            EnableDragReorder(newListItem);
+
+        return newListItem;
+    }
+
+    // Puts the container back in line with allListedMedia after items got moved/removed/swapped
+    private void RelayoutSongItems()
+    {
+        MusicListContainer.removeAll();
+        for(int i = 0; i < allListedMedia.size(); i++)
+        {
+            if(i > 0)
+                MusicListContainer.add(Box.createVerticalStrut(2));
+
+            allListedMedia.get(i).setListIndex(i);
+            MusicListContainer.add(allListedMedia.get(i));
+        }
+        MusicListContainer.revalidate();
+        MusicListContainer.repaint();
+        QueueVisibilityUpdate();
+    }
+
+    private int IndexOfSong(int id)
+    {
+        for(int i = 0; i < allListedMedia.size(); i++)
+        {
+            if(allListedMedia.get(i).media.id == id)
+                return i;
+        }
+        return -1;
+    }
+
+//#region Library Changes
+    // Patches the list for whatever changed instead of reloading it
+    private void OnLibraryChange(LibraryRepository.Change change)
+    {
+        boolean searching = searchField != null && !searchField.getText().isBlank();
+        boolean changed = false;
+
+        switch(change.kind)
+        {
+            case MEDIA:
+                for(int id : change.removed)
+                    changed |= RemoveSong(id);
+
+                for(int id : change.updated)
+                {
+                    int index = IndexOfSong(id);
+                    if(index < 0)
+                        continue;
+
+                    Media updated = change.media.get(id);
+                    allSongs.set(index, updated);
+                    allListedMedia.set(index, CreateSongItem(updated, index));
+                    changed = true;
+                }
+
+                // New songs only go on the end if the whole library's already showing, otherwise paging gets to them on its own
+                if(heldPlaylist == null && !searching && !hasMorePages && !loadingPage && change.added.length > 0)
+                {
+                    List<Media> added = new ArrayList<>();
+                    for(int id : change.added)
+                    {
+                        Media song = change.media.get(id);
+                        if(lastLoadedSong == null || LIBRARY_SORT.comparator().compare(song, lastLoadedSong) > 0)
+                            added.add(song);
+                    }
+
+                    if(!added.isEmpty())
+                    {
+                        added.sort(LIBRARY_SORT.comparator());
+                        lastLoadedSong = added.get(added.size() - 1);
+                        AddSongItems(added);
+                        changed = true;
+                    }
+                }
+                break;
+
+            case PLAYLISTS:
+                if(heldPlaylist == null)
+                    return;
+
+                for(int id : change.removed)
+                {
+                    if(id == heldPlaylist.id)
+                    {
+                        App.player.OpenPlaylistMenu(); // Nothing left to show
+                        return;
+                    }
+                }
+
+                for(int id : change.updated)
+                {
+                    if(id == heldPlaylist.id)
+                        ShowPlaylistHeader(change.playlists.get(id));
+                }
+                return;
+
+            case PLAYLIST_CONTENTS:
+                if(heldPlaylist == null || change.playlistId != heldPlaylist.id)
+                    return;
+
+                for(int id : change.removed)
+                    changed |= RemoveSong(id);
+
+                for(int id : change.updated)
+                {
+                    if(!localMoves.remove(id))
+                    {
+                        CreateMediaListAgain(); // Moved from somewhere else, we don't know where to
+                        return;
+                    }
+                }
+
+                for(int id : change.added)
+                {
+                    Media song = LibraryRepository.getMedia(id);
+                    if(song == null)
+                    {
+                        CreateMediaListAgain();
+                        return;
+                    }
+
+                    AddSongItems(List.of(song));
+                    changed = true;
+                }
+                break;
+        }
+
+        if(changed)
+            RelayoutSongItems();
+    }
+
+    private boolean RemoveSong(int id)
+    {
+        int index = IndexOfSong(id);
+        if(index < 0)
+            return false;
+
+        allListedMedia.remove(index);
+        allSongs.remove(index);
+        return true;
+    }
+
+    private void CreateMediaListAgain()
+    {
+        MusicListContainer.removeAll();
+        CreateMediaList();
+        MusicListContainer.revalidate();
+        MusicListContainer.repaint();
+    }
+
+    @Override
+    public void addNotify()
+    {
+        super.addNotify();
+        LibraryRepository.addListener(changeListener);
+        QueueVisibilityUpdate(); // Rows cancelled their reads when we were taken off screen
+    }
+
+    @Override
+    public void removeNotify()
+    {
+        LibraryRepository.removeListener(changeListener);
+        super.removeNotify();
+    }
+//#endregion Library Changes
+
+    private void RunSearch()
+    {
+        String query = searchField.getText();
+
+        if(query.isBlank())
+        {
+            Refresh(); // Back to the normal paged list
+            return;
+        }
+
+        MusicListContainer.removeAll();
+        MusicListContainer.revalidate();
+        MusicListContainer.repaint();
+        allSongs = new ArrayList<>();
+        allListedMedia.clear();
+        hasMorePages = false;
+        int generation = ++listGeneration;
+
+        AsyncDatabase.onEdt(AsyncDatabase.searchMedia(query, SEARCH_LIMIT), results -> ShowSongs(generation, results));
+    }
+
+//#region Drag Reorder
+    // Only playlists have an order of their own, the library is always sorted
+    private void EnableDragReorder(SongItem item)
+    {
+        MouseAdapter dragListener = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if(SwingUtilities.isLeftMouseButton(e))
+                    draggedItem = item;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if(draggedItem == null)
+                    return;
+
+                MusicListContainer.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
+                MarkDropSpot(DropIndexAt(e));
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if(draggedItem == null)
+                    return;
+
+                int dropIndex = DropIndexAt(e);
+                SongItem moved = draggedItem;
+
+                draggedItem = null;
+                MarkDropSpot(-1);
+                MusicListContainer.setCursor(Cursor.getDefaultCursor());
+
+                MoveSong(moved, dropIndex);
+            }
+        };
+
+        item.addMouseListener(dragListener);
+        item.addMouseMotionListener(dragListener);
+    }
+
+    // Which gap the mouse is over, 0 being above the first song and allListedMedia.size() below the last
+    private int DropIndexAt(MouseEvent e)
+    {
+        Point point = SwingUtilities.convertPoint(e.getComponent(), e.getPoint(), MusicListContainer);
+
+        for(int i = 0; i < allListedMedia.size(); i++)
+        {
+            SongItem item = allListedMedia.get(i);
+            if(point.y < item.getY() + item.getHeight() / 2)
+                return i;
         }
+
+        return allListedMedia.size();
+    }
+
+    // Draws a line where the song would land (-1 clears it)
+    private void MarkDropSpot(int dropIndex)
+    {
+        if(dropMarkedItem != null)
+            dropMarkedItem.setBorder(null);
+        dropMarkedItem = null;
+
+        if(dropIndex < 0 || allListedMedia.isEmpty())
+            return;
+
+        if(dropIndex < allListedMedia.size())
+        {
+            dropMarkedItem = allListedMedia.get(dropIndex);
+            dropMarkedItem.setBorder(new MatteBorder(2, 0, 0, 0, ColorScheme.PRIMARY_COLOR));
+        }
+        else
+        {
+            dropMarkedItem = allListedMedia.get(allListedMedia.size() - 1);
+            dropMarkedItem.setBorder(new MatteBorder(0, 0, 2, 0, ColorScheme.PRIMARY_COLOR));
+        }
+    }
+
+    // Moves the song on screen straight away, then saves it. The db only has to rewrite the one row that moved
+    private void MoveSong(SongItem item, int dropIndex)
+    {
+        int from = allListedMedia.indexOf(item);
+        if(from < 0 || dropIndex == from || dropIndex == from + 1)
+            return; // Dropped back where it was
+
+        int to = dropIndex > from ? dropIndex - 1 : dropIndex;
+
+        allListedMedia.remove(from);
+        allListedMedia.add(to, item);
+        allSongs.add(to, allSongs.remove(from));
+        RelayoutSongItems();
+
+        localMoves.add(item.media.id);
+        int afterMedia = to == 0 ? -1 : allSongs.get(to - 1).id;
+        AsyncDatabase.onEdt(AsyncDatabase.moveInPlaylist(heldPlaylist.id, item.media.id, afterMedia), moved -> {}, error -> {
+            error.printStackTrace();
+            localMoves.remove(item.media.id);
+            Refresh(); // Put it back to whatever actually got saved
+        });
+    }
+//#endregion Drag Reorder
+
+//#region Visible Rows
+    // Once the layout has settled, since rows only get their real positions after that
+    private void QueueVisibilityUpdate()
+    {
+        if(visibilityUpdateQueued)
+            return;
+        visibilityUpdateQueued = true;
+        SwingUtilities.invokeLater(() -> {
+            visibilityUpdateQueued = false;
+            UpdateVisibleRows();
+        });
+    }
+
+    // Rows on screen get their files read first, rows up to a screen away after those, and anything further out gets cancelled
+    private void UpdateVisibleRows()
+    {
+        if(songScroll == null)
+            return;
+
+        Rectangle view = songScroll.getViewport().getViewRect();
+        int nearbyTop = view.y - view.height;
+        int nearbyBottom = view.y + view.height * 2;
+
+        Set<SongItem> stillScheduled = new HashSet<>();
+        for(int i = FirstRowBelow(nearbyTop); i < allListedMedia.size(); i++)
+        {
+            SongItem item = allListedMedia.get(i);
+            int top = item.getY();
+            int bottom = top + item.getHeight();
+            if(top > nearbyBottom)
+                break;
+            if(item.getParent() == null || item.getHeight() == 0)
+                continue; // Not laid out yet, the next update will get it
+
+            boolean visible = bottom > view.y && top < view.y + view.height;
+            item.setOnScreen(visible ? ExtractionScheduler.Priority.VISIBLE : ExtractionScheduler.Priority.NEARBY);
+            stillScheduled.add(item);
+        }
+
+        for(SongItem item : scheduledRows)
+        {
+            if(!stillScheduled.contains(item))
+                item.setOnScreen(null);
+        }
+        scheduledRows.clear();
+        scheduledRows.addAll(stillScheduled);
+    }
+
+    // Rows are stacked top to bottom, so the first one reaching past y can be binary searched
+    private int FirstRowBelow(int y)
+    {
+        int low = 0;
+        int high = allListedMedia.size();
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            SongItem item = allListedMedia.get(middle);
+            if(item.getY() + item.getHeight() <= y)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+//#endregion Visible Rows
+
+    private void LoadMoreIfNearBottom(JScrollBar scrollBar)
+    {
+        if(!hasMorePages)
+            return;
+
+        int distanceFromBottom = scrollBar.getMaximum() - (scrollBar.getValue() + scrollBar.getVisibleAmount());
+        if(distanceFromBottom < LOAD_MORE_DISTANCE)
+            LoadNextPage();
     }
     
+    // Also gets called again whenever the playlist is renamed or gets a new image
+    private void ShowPlaylistHeader(Playlist playlist)
+    {
+        heldPlaylist = playlist;
+        playlistTitle.setText(playlist.name);
+        playListIcon.setIcon(ImageUtils.getResizedImage("Images/TempSongImage.png", PLAYLIST_ICON_SIZE));
+
+        if(playlist.hasImage)
+        {
+            int playlistId = playlist.id;
+            new SwingWorker<BufferedImage,Void>() {
+                @Override
+                protected BufferedImage doInBackground() throws Exception {
+                    return ThumbnailCache.getPlaylistThumbnail(playlistId, PLAYLIST_ICON_SIZE);
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        BufferedImage image = get();
+                        if(image != null && heldPlaylist.id == playlistId)
+                            playListIcon.setIcon(new ImageIcon(image));
+                    } catch (Exception e) {
+                        //idk what to put here, lol
+                    }
+                }
+            }.execute();
+        }
+    }
+
     private void OpenMediaAddingMenu() {
         JDialog dialog = MediaAddingMenu.OpenMediaAddingMenu(App.player);
         dialog.setLocationRelativeTo(App.player);
         dialog.setVisible(true); // BLOCKS until dialog is closed
     }
 
+    // New songs show up through LibraryRepository as each batch gets saved, nothing to refresh here
+    private void OpenFolderSelector() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if(chooser.showOpenDialog(App.player) != JFileChooser.APPROVE_OPTION)
+            return;
+
+        String folder = chooser.getSelectedFile().getAbsolutePath();
+        AsyncDatabase.onEdt(AsyncDatabase.submit(() -> LibraryScanner.addRoot(folder)), result -> {});
+    }
+
     private void OpenPlaylistEditingMenu() {
         JDialog dialog = PlaylistAddingMenu.OpenPlaylistCreationMenu(App.player, heldPlaylist.id);
         dialog.setLocationRelativeTo(App.player);
@@ -106,8 +622,40 @@ public class SongsMenu extends JPanel {
             openMediaAdderButton = new JButton("Add Media");
             openMediaAdderButton.addActionListener(e -> OpenMediaAddingMenu());
 
+            var addFolderButton = new JButton("Add Folder");
+            addFolderButton.addActionListener(e -> OpenFolderSelector());
+            addFolderButton.setBackground(ColorScheme.PRIMARY_COLOR.brighter());
+            addFolderButton.setOpaque(true);
+            addFolderButton.setBorderPainted(false);
+
+            var searchSection = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 12));
+            searchSection.setOpaque(false);
+            searchField = new JTextField(25);
+            searchField.setToolTipText("Search by name, author or album");
+            searchSection.add(searchField);
+
+            // Waits for a short pause in typing so we're not querying on every single key
+            searchDelay = new Timer(SEARCH_DELAY_MS, e -> RunSearch());
+            searchDelay.setRepeats(false);
+            searchField.getDocument().addDocumentListener(new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent e) { searchDelay.restart(); }
+
+                @Override
+                public void removeUpdate(DocumentEvent e) { searchDelay.restart(); }
+
+                @Override
+                public void changedUpdate(DocumentEvent e) { searchDelay.restart(); }
+            });
+
             topComponents.add(title, BorderLayout.WEST);
-            topComponents.add(openMediaAdderButton, BorderLayout.EAST);
+            topComponents.add(searchSection, BorderLayout.CENTER);
+
+            var addButtons = new JPanel(new GridLayout(1, 0, 4, 0)); // Both as tall as the bar, like the single button used to be
+            addButtons.setOpaque(false);
+            addButtons.add(addFolderButton);
+            addButtons.add(openMediaAdderButton);
+            topComponents.add(addButtons, BorderLayout.EAST);
         }
         else
         {
@@ -115,19 +663,16 @@ public class SongsMenu extends JPanel {
             titleSection.setLayout(new FlowLayout(1, 2, 0));
             titleSection.setOpaque(false);
 
-            try {
-                var imageSize = 50;
-                var playListIcon = new JLabel(ImageUtils.resizeImageIcon(new ImageIcon(ImageUtils.bytesToImage(heldPlaylist.image)), imageSize, imageSize));
-                titleSection.add(playListIcon);
-            } catch (Exception e) {
-                //idk what to put here, lol
-            }
+            playListIcon = new JLabel();
+            titleSection.add(playListIcon);
 
-            var playlistTitle = new JLabel(heldPlaylist.name);
+            playlistTitle = new JLabel();
             playlistTitle.setFont(new Font("Segoe UI", Font.PLAIN, 25));
             playlistTitle.setForeground(ColorScheme.TEXT_COLOR);
             titleSection.add(playlistTitle);
 
+            ShowPlaylistHeader(heldPlaylist);
+
             openMediaAdderButton = new JButton("Edit Playlist Details");
             openMediaAdderButton.addActionListener(e -> OpenPlaylistEditingMenu());
 
@@ -150,10 +695,13 @@ public class SongsMenu extends JPanel {
         
         JScrollPane scrollSideBar = new JScrollPane(MusicListContainer, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                     JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        songScroll = scrollSideBar;
         scrollSideBar.setPreferredSize(new Dimension(20, 0));
         scrollSideBar.setBorder(null);
         scrollSideBar.setViewportBorder(null);
         scrollSideBar.getViewport().setBackground(ColorScheme.LIGHT_BG);
+        scrollSideBar.getVerticalScrollBar().addAdjustmentListener(e -> LoadMoreIfNearBottom(scrollSideBar.getVerticalScrollBar()));
+        scrollSideBar.getViewport().addChangeListener(e -> UpdateVisibleRows()); // Scrolled, resized or the list grew
 
         add(topComponents, BorderLayout.NORTH);
         add(scrollSideBar);
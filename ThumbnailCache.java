@@ -0,0 +1,99 @@
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps decoded thumbnails in memory so scrolling back over something doesn't hit the db and the decoder again.
+// Least recently used images get dropped once the cache goes over its byte budget (change it with -Dmidnight.thumbnailCacheBytes)
+public class ThumbnailCache {
+    private static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+    private static long budget = Long.getLong("midnight.thumbnailCacheBytes", DEFAULT_BUDGET);
+
+    private static final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<>(64, 0.75f, true); // true = iterate in access order
+    private static long usedBytes;
+    private static final Map<Integer, Integer> playlistGenerations = new HashMap<>(); // Bumped by invalidatePlaylist, see getPlaylistThumbnail
+
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        trim();
+    }
+
+    public static synchronized BufferedImage get(String key) {
+        return images.get(key);
+    }
+
+    public static synchronized void put(String key, BufferedImage image) {
+        BufferedImage old = images.put(key, image);
+        if(old != null)
+            usedBytes -= sizeOf(old);
+        usedBytes += sizeOf(image);
+
+        trim();
+    }
+
+    // Drops everything cached under a key prefix, e.g. every size of one playlist's thumbnail after it's been changed
+    public static synchronized void invalidate(String prefix) {
+        Iterator<Map.Entry<String, BufferedImage>> entries = images.entrySet().iterator();
+        while(entries.hasNext()) {
+            Map.Entry<String, BufferedImage> entry = entries.next();
+            if(entry.getKey().startsWith(prefix)) {
+                usedBytes -= sizeOf(entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    // Blocks while it reads and decodes, so call it off the EDT. Returns null if the playlist has no thumbnail
+    public static BufferedImage getPlaylistThumbnail(int playlistId, int size) throws Exception {
+        String key = playlistKey(playlistId) + size;
+
+        BufferedImage cached = get(key);
+        if(cached != null)
+            return cached;
+
+        int generation = generationOf(playlistId);
+        try(InputStream input = Database.openPlaylistThumbnail(playlistId)) {
+            if(input == null)
+                return null;
+
+            BufferedImage image = ImageUtils.decodeScaled(input, size);
+            if(image != null)
+                putIfCurrent(key, image, playlistId, generation);
+
+            return image;
+        }
+    }
+
+    public static synchronized void invalidatePlaylist(int playlistId) {
+        playlistGenerations.merge(playlistId, 1, Integer::sum);
+        invalidate(playlistKey(playlistId));
+    }
+
+    private static synchronized int generationOf(int playlistId) {
+        return playlistGenerations.getOrDefault(playlistId, 0);
+    }
+
+    // Only if the thumbnail hasn't changed since the read started, otherwise the old image would sit in here after the invalidate
+    private static synchronized void putIfCurrent(String key, BufferedImage image, int playlistId, int generation) {
+        if(generationOf(playlistId) == generation)
+            put(key, image);
+    }
+
+    private static String playlistKey(int playlistId) {
+        return "playlist:" + playlistId + ":";
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long)image.getWidth() * image.getHeight() * 4;
+    }
+
+    private static void trim() {
+        Iterator<BufferedImage> eldest = images.values().iterator();
+        while(usedBytes > budget && eldest.hasNext()) {
+            usedBytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+}
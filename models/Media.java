@@ -7,6 +7,21 @@ public class Media {
     public String format;
     public String author;
     public String album;
+    public long addedAt; // Epoch millis, 0 until it's been saved
+
+    // Read out of the file itself by MediaFileHandler.readTechnicalMetadata.
+    // fileSize + fileModified are the file's fingerprint from when that happened (both 0 if it never has)
+    public long durationMs;
+    public int bitrate; // Bits per second
+    public String codec;
+    public long fileSize;
+    public long fileModified; // Epoch millis
+    public String coverHash; // null if there's no cover art in the file
+    public boolean readPending; // LibraryScanner found it but hasn't read its tags + the above yet (only the fingerprint is real)
+
+    // playlist_media's shuffle settings when this was loaded as part of a playlist, the defaults otherwise. See ShuffleEngine
+    public double probability = 1; // Relative chance of coming up, 0 = never (unless nothing else can)
+    public int repeatability; // How many other tracks have to play before this one can come up again, 0 = the queue's default
 
     public Media(int id, String path, String name, String format, String author, String album)
     {
@@ -18,6 +33,12 @@ public class Media {
         this.album = album;
     }
 
+    public Media(int id, String path, String name, String format, String author, String album, long addedAt)
+    {
+        this(id, path, name, format, author, album);
+        this.addedAt = addedAt;
+    }
+
     public Media(String path, String name, String format, String author, String album)
     {
         this.path = path;
@@ -34,4 +55,38 @@ public class Media {
         this.author = null;
         this.album = null;
     };
+
+    public boolean hasTechnicalMetadata()
+    {
+        return fileSize != 0 || fileModified != 0;
+    }
+
+    public void copyTechnicalMetadata(Media from)
+    {
+        durationMs = from.durationMs;
+        bitrate = from.bitrate;
+        codec = from.codec;
+        fileSize = from.fileSize;
+        fileModified = from.fileModified;
+        coverHash = from.coverHash;
+        readPending = from.readPending;
+    }
+
+    // Same id means same song. Anything that hasn't been saved yet (id 0) is only ever equal to itself
+    @Override
+    public boolean equals(Object other)
+    {
+        if(this == other)
+            return true;
+        if(!(other instanceof Media media))
+            return false;
+
+        return id != 0 && id == media.id;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return id != 0 ? Integer.hashCode(id) : System.identityHashCode(this);
+    }
 }
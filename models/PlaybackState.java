@@ -0,0 +1,75 @@
+package models;
+
+import java.util.List;
+
+// What's playing, as one snapshot that never changes. Only MusicPlayer's playback thread makes new ones,
+// anything else just reads whichever one is current (MusicPlayer.getState()) without any locking
+public final class PlaybackState {
+    public static final PlaybackState EMPTY = new PlaybackState(0, List.of(), -1, null, false, false, false, false);
+
+    public final long version; // Goes up by one with every change
+    public final List<Media> queue; // Can't be modified
+    public final int index; // Where current is in queue, -1 if nothing's playing
+    public final Media current;
+    public final boolean paused;
+    public final boolean muted;
+    public final boolean repeating;
+    public final boolean shuffling;
+
+    private PlaybackState(long version, List<Media> queue, int index, Media current, boolean paused, boolean muted, boolean repeating, boolean shuffling) {
+        this.version = version;
+        this.queue = queue;
+        this.index = index;
+        this.current = current;
+        this.paused = paused;
+        this.muted = muted;
+        this.repeating = repeating;
+        this.shuffling = shuffling;
+    }
+
+    // Starts playing queue[index], unpaused. The list gets copied, so whoever passed it in can keep changing theirs
+    public PlaybackState playing(List<Media> queue, int index) {
+        List<Media> copy = List.copyOf(queue);
+        return new PlaybackState(version + 1, copy, index, copy.get(index), false, muted, repeating, shuffling);
+    }
+
+    public PlaybackState playing(int index) {
+        return playing(queue, index);
+    }
+
+    // Something that might not be in the queue (an old one from the play history), same as withQueue if it isn't
+    public PlaybackState playing(Media song) {
+        return new PlaybackState(version + 1, queue, queue.indexOf(song), song, false, muted, repeating, shuffling);
+    }
+
+    // New queue, same song. It keeps playing even if it isn't in there anymore, it just has no index until something else plays
+    public PlaybackState withQueue(List<Media> queue) {
+        List<Media> copy = List.copyOf(queue);
+        return new PlaybackState(version + 1, copy, current == null ? -1 : copy.indexOf(current), current, paused, muted, repeating, shuffling);
+    }
+
+    public PlaybackState withPaused(boolean paused) {
+        return new PlaybackState(version + 1, queue, index, current, paused, muted, repeating, shuffling);
+    }
+
+    public PlaybackState withMuted(boolean muted) {
+        return new PlaybackState(version + 1, queue, index, current, paused, muted, repeating, shuffling);
+    }
+
+    public PlaybackState withRepeating(boolean repeating) {
+        return new PlaybackState(version + 1, queue, index, current, paused, muted, repeating, shuffling);
+    }
+
+    public PlaybackState withShuffling(boolean shuffling) {
+        return new PlaybackState(version + 1, queue, index, current, paused, muted, repeating, shuffling);
+    }
+
+    // index always points at current (or is -1), and nothing's paused when nothing's playing
+    public boolean isConsistent() {
+        if(index < -1 || index >= queue.size())
+            return false;
+        if(index >= 0 && !queue.get(index).equals(current))
+            return false;
+        return current != null || !paused;
+    }
+}
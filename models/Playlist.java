@@ -6,6 +6,7 @@ public class Playlist {
     public int id;
     public String name;
     public Blob image;
+    public boolean hasImage; // Set even when image wasn't loaded, so views know if there's a thumbnail worth fetching
 
     public Playlist(int id, String name)
     {
@@ -22,6 +23,7 @@ public class Playlist {
     {
         this.name = name;
         this.image = image;
+        this.hasImage = image != null;
     }
 
     public Playlist(int id, String name, Blob image)
@@ -29,6 +31,7 @@ public class Playlist {
         this.id = id;
         this.name = name;
         this.image = image;
+        this.hasImage = image != null;
     }
 
     @Override
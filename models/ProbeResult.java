@@ -0,0 +1,20 @@
+package models;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Everything a MetadataProvider could tell us about a file (see MediaFileHandler.readMetadata)
+public class ProbeResult {
+    public String formatName;
+    public long durationMs;
+    public int bitrate; // Bits per second
+    public String codec; // First audio stream's codec
+    public boolean hasAttachedPicture; // There's cover art worth extracting
+    public byte[] coverArt; // Only filled in when the reader could grab it on the way past (NativeTagReader does, ffprobe doesn't)
+    public Map<String, String> tags = new HashMap<>(); // Keys lowercased, containers don't agree on "ARTIST" vs "artist"
+
+    public String getTag(String name)
+    {
+        return tags.get(name.toLowerCase());
+    }
+}